@@ -0,0 +1,174 @@
+package sh.hell.jsmtp.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sh.hell.jsmtp.server.SMTPTLSProfile;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures server-side TLS handshakes between two SSLEngines in memory, configured like STARTTLS sessions used to be or using an SMTPTLSProfile.
+ * Run with: mvn -P benchmark test-compile exec:exec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TLSHandshakeBenchmark
+{
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	/**
+	 * "supported" enables everything the engine supports, as STARTTLS did before SMTPTLSProfile; "profile" and "aead" use SMTPTLSProfile.of(sslContext, aeadOnly).
+	 */
+	@Param({"supported", "profile", "aead"})
+	public String configuration;
+	/**
+	 * True to let the client resume its previous session, false to force full handshakes.
+	 */
+	@Param({"false", "true"})
+	public boolean resumption;
+	private SSLContext serverContext;
+	private SSLContext clientContext;
+	private SMTPTLSProfile profile;
+	private final ByteBuffer clientToServer = ByteBuffer.allocate(65536);
+	private final ByteBuffer serverToClient = ByteBuffer.allocate(65536);
+	private final ByteBuffer clientApp = ByteBuffer.allocate(65536);
+	private final ByteBuffer serverApp = ByteBuffer.allocate(65536);
+	private int peerPort = 1;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		final char[] password = "123456".toCharArray();
+		final KeyStore keyStore = KeyStore.getInstance("JKS");
+		try(InputStream in = new FileInputStream(".jsmtp_keystore"))
+		{
+			keyStore.load(in, password);
+		}
+		final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, password);
+		serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+		clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(null, new TrustManager[]{new X509TrustManager()
+		{
+			public void checkClientTrusted(X509Certificate[] certs, String authType)
+			{
+			}
+
+			public void checkServerTrusted(X509Certificate[] certs, String authType)
+			{
+			}
+
+			public X509Certificate[] getAcceptedIssuers()
+			{
+				return new X509Certificate[0];
+			}
+		}}, null);
+		if(!configuration.equals("supported"))
+		{
+			profile = SMTPTLSProfile.of(serverContext, configuration.equals("aead"));
+			profile.configure(serverContext.getServerSessionContext());
+		}
+	}
+
+	@Benchmark
+	public SSLSession handshake() throws SSLException
+	{
+		// The client only resumes sessions with the same peer.
+		final SSLEngine client = clientContext.createSSLEngine("localhost", resumption ? 0 : peerPort++);
+		client.setUseClientMode(true);
+		final SSLEngine server = serverContext.createSSLEngine();
+		server.setUseClientMode(false);
+		if(profile == null)
+		{
+			server.setEnabledProtocols(server.getSupportedProtocols());
+			server.setEnabledCipherSuites(server.getSupportedCipherSuites());
+		}
+		else
+		{
+			profile.configure(server);
+		}
+		clientToServer.clear();
+		serverToClient.clear();
+		client.beginHandshake();
+		server.beginHandshake();
+		while(isHandshaking(client) || isHandshaking(server))
+		{
+			if(!step(client, serverToClient, clientToServer, clientApp) & !step(server, clientToServer, serverToClient, serverApp))
+			{
+				throw new SSLException("The handshake is stuck.");
+			}
+		}
+		// Lets the client receive the session ticket the server sends after a TLS 1.3 handshake.
+		serverToClient.flip();
+		while(serverToClient.hasRemaining() && client.unwrap(serverToClient, clientApp).bytesConsumed() > 0)
+		{
+			runTasks(client);
+		}
+		return server.getSession();
+	}
+
+	private static boolean isHandshaking(SSLEngine engine)
+	{
+		return engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED;
+	}
+
+	private static boolean step(SSLEngine engine, ByteBuffer in, ByteBuffer out, ByteBuffer app) throws SSLException
+	{
+		switch(engine.getHandshakeStatus())
+		{
+			case NEED_TASK:
+				runTasks(engine);
+				return true;
+			case NEED_WRAP:
+				return engine.wrap(EMPTY, out).bytesProduced() > 0;
+			case NEED_UNWRAP:
+				in.flip();
+				try
+				{
+					app.clear();
+					return engine.unwrap(in, app).bytesConsumed() > 0;
+				}
+				finally
+				{
+					in.compact();
+				}
+			default:
+				return false;
+		}
+	}
+
+	private static void runTasks(SSLEngine engine)
+	{
+		Runnable task;
+		while((task = engine.getDelegatedTask()) != null)
+		{
+			task.run();
+		}
+	}
+}
@@ -4,6 +4,7 @@ import sh.hell.jsmtp.content.SMTPMail;
 import sh.hell.jsmtp.server.SMTPEventHandler;
 import sh.hell.jsmtp.server.SMTPServer;
 import sh.hell.jsmtp.server.SMTPSession;
+import sh.hell.jsmtp.server.SMTPTLSMode;
 
 public class Main
 {
@@ -24,6 +25,6 @@ public class Main
 				System.out.println(mail);
 				return true;
 			}
-		}, ".jsmtp_keystore", "123456").setPorts(465).start();
+		}, ".jsmtp_keystore", "123456").setPorts(SMTPTLSMode.IMPLICIT, 465).start();
 	}
 }
@@ -14,9 +14,11 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
@@ -325,10 +327,19 @@ public class SMTPClient
 		return false;
 	}
 
+	/**
+	 * Sends the given mail.
+	 * If the mail has a {@link SMTPMail#rawMessage}, e.g. because it is being relayed, its bytes are sent exactly as they are, using BDAT if the server supports CHUNKING.
+	 *
+	 * @param mail The mail.
+	 * @return The server's response to the mail.
+	 * @throws IOException   When writing fails.
+	 * @throws SMTPException When the server refused the mail or there is another SMTP protocol error.
+	 */
 	public SMTPResponse send(SMTPMail mail) throws IOException, SMTPException
 	{
-		final String rawContents = mail.getRawContents();
-		final int size = rawContents.length();
+		final String rawContents = (mail.rawMessage == null ? mail.getRawContents() : null);
+		final long size = (mail.rawMessage == null ? rawContents.length() : mail.rawMessage.remaining());
 		boolean supportsSize = false;
 		for(String serverCapability : serverCapabilities)
 		{
@@ -368,13 +379,29 @@ public class SMTPClient
 				throw new SMTPException("The server denied " + recipient.toString() + " as recipient: " + response.toString());
 			}
 		}
-		write("DATA").flush();
-		response = readResponse();
-		if(!response.status.equals("354"))
+		if(rawContents == null && serverCapabilities.contains("CHUNKING"))
+		{
+			write("BDAT " + size + " LAST").flush();
+			writeRaw(mail.rawMessage, false);
+		}
+		else
 		{
-			throw new SMTPException("The server sent an invalid response to DATA: " + response);
+			write("DATA").flush();
+			response = readResponse();
+			if(!response.status.equals("354"))
+			{
+				throw new SMTPException("The server sent an invalid response to DATA: " + response);
+			}
+			if(rawContents == null)
+			{
+				writeRaw(mail.rawMessage, true);
+				write(".").flush();
+			}
+			else
+			{
+				write(rawContents).write(".").flush();
+			}
 		}
-		write(rawContents).write(".").flush();
 		response = readResponse();
 		if(!response.status.equals("250"))
 		{
@@ -382,4 +409,45 @@ public class SMTPClient
 		}
 		return response;
 	}
+
+	/**
+	 * Writes the given raw mail to the server without encoding it.
+	 *
+	 * @param raw         The raw mail.
+	 * @param dotStuffing True if lines starting with a dot need to be escaped and the mail needs to end with CRLF, as required by DATA.
+	 * @throws IOException When writing fails.
+	 */
+	private void writeRaw(ByteBuffer raw, boolean dotStuffing) throws IOException
+	{
+		final OutputStream out = socket.getOutputStream();
+		final ByteBuffer data = raw.duplicate();
+		final byte[] buffer = new byte[65536];
+		boolean lineStart = true;
+		while(data.hasRemaining())
+		{
+			final int length = Math.min(buffer.length, data.remaining());
+			data.get(buffer, 0, length);
+			int start = 0;
+			if(dotStuffing)
+			{
+				for(int i = 0; i < length; i++)
+				{
+					if(lineStart && buffer[i] == '.')
+					{
+						out.write(buffer, start, i - start);
+						out.write('.');
+						start = i;
+					}
+					lineStart = (buffer[i] == '\n');
+				}
+			}
+			out.write(buffer, start, length - start);
+		}
+		if(dotStuffing && !lineStart)
+		{
+			out.write('\r');
+			out.write('\n');
+		}
+		out.flush();
+	}
 }
@@ -2,6 +2,10 @@ package sh.hell.jsmtp.content;
 
 import sh.hell.jsmtp.exceptions.InvalidHeaderException;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -14,6 +18,18 @@ public class SMTPMail
 	public final ArrayList<SMTPAddress> recipients = new ArrayList<>();
 	public final HashMap<String, String> headers = new HashMap<>();
 	public SMTPAddress sender;
+	/**
+	 * A read-only view of the mail exactly as it was received by an SMTPServer, including its header section, with CRLF line endings and without dot-stuffing.
+	 * If the mail was spooled to disk, this view is memory-mapped.
+	 * Null if the mail was not received by an SMTPServer.
+	 */
+	public ByteBuffer rawMessage;
+	/**
+	 * The contents of the email. For a received email, this is null until {@link #getContents()} has parsed them from the {@link #rawMessage}.
+	 *
+	 * @deprecated Use {@link #getContents()} and {@link #data(SMTPContent)} instead.
+	 */
+	@Deprecated
 	public SMTPContent contents;
 
 	public SMTPMail()
@@ -158,6 +174,79 @@ public class SMTPMail
 		return this;
 	}
 
+	/**
+	 * Returns the contents of the email.
+	 * The contents of a received email are only parsed from its {@link #rawMessage} when they are first asked for, so relaying or storing it never pays for MIME decoding.
+	 *
+	 * @return The contents of the email, or null if it has none.
+	 */
+	public SMTPContent getContents()
+	{
+		if(contents == null && rawMessage != null)
+		{
+			final ByteBuffer body = rawMessage.duplicate();
+			body.position(getBodyOffset(body));
+			contents = SMTPContent.from(headers, getCharset(headers.get("content-type")).decode(body).toString().replace("\r\n", "\n"));
+		}
+		return contents;
+	}
+
+	/**
+	 * Returns the charset named by the charset parameter of the given content type, or UTF-8 if it doesn't name a supported one, so parsing doesn't depend on the platform's default charset.
+	 *
+	 * @param contentType The value of a content-type header, or null.
+	 * @return The charset.
+	 */
+	private static Charset getCharset(String contentType)
+	{
+		if(contentType != null)
+		{
+			for(String parameter : contentType.split(";"))
+			{
+				parameter = parameter.trim();
+				if(parameter.regionMatches(true, 0, "charset=", 0, 8))
+				{
+					final String name = parameter.substring(8).replace("\"", "");
+					try
+					{
+						if(Charset.isSupported(name))
+						{
+							return Charset.forName(name);
+						}
+					}
+					catch(IllegalCharsetNameException ignored)
+					{
+					}
+					break;
+				}
+			}
+		}
+		return StandardCharsets.UTF_8;
+	}
+
+	/**
+	 * Returns the offset of the body in the given raw mail, which follows the first empty line.
+	 *
+	 * @param raw The raw mail.
+	 * @return The offset of the body, or the length of the raw mail if it has no body.
+	 */
+	private static int getBodyOffset(ByteBuffer raw)
+	{
+		final int length = raw.limit();
+		if(length >= 2 && raw.get(0) == '\r' && raw.get(1) == '\n')
+		{
+			return 2;
+		}
+		for(int i = 3; i < length; i++)
+		{
+			if(raw.get(i) == '\n' && raw.get(i - 1) == '\r' && raw.get(i - 2) == '\n' && raw.get(i - 3) == '\r')
+			{
+				return i + 1;
+			}
+		}
+		return length;
+	}
+
 	public String getRawContents()
 	{
 		StringBuilder contents = new StringBuilder();
@@ -168,7 +257,7 @@ public class SMTPMail
 				contents.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
 			}
 		}
-		for(String line : this.contents.getBody().split("\r\n"))
+		for(String line : this.getContents().getBody().split("\r\n"))
 		{
 			if(line.startsWith("."))
 			{
@@ -203,6 +292,7 @@ public class SMTPMail
 		{
 			str.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
 		}
-		return str.append("\n").append(contents.toString()).toString();
+		final SMTPContent contents = getContents();
+		return str.append("\n").append(contents == null ? "" : contents.toString()).toString();
 	}
 }
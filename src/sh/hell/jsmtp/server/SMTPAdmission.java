@@ -0,0 +1,184 @@
+package sh.hell.jsmtp.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a new connection may get a session, based on the number of concurrent sessions overall and per client network, and on the rate of accepted connections.
+ * Connections that are turned away get a pre-encoded 421 reply and are closed without a session ever being created.
+ */
+class SMTPAdmission
+{
+	static final byte[] TOO_BUSY = "421 Too busy, try again later.\r\n".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] TOO_MANY_CONNECTIONS = "421 Too many connections from your network, try again later.\r\n".getBytes(StandardCharsets.US_ASCII);
+	private final AtomicInteger sessions = new AtomicInteger(0);
+	private final ConcurrentHashMap<InetAddress, Integer> clientSessions = new ConcurrentHashMap<>();
+	/**
+	 * The theoretical arrival time of the next connection in nanoseconds, as in the generic cell rate algorithm.
+	 */
+	private final AtomicLong nextAccept = new AtomicLong(System.nanoTime());
+	int maxSessions = -1;
+	int maxClientSessions = -1;
+	int ipv4PrefixLength = 32;
+	int ipv6PrefixLength = 128;
+	/**
+	 * The minimum number of nanoseconds between accepted connections, or 0 for no limit. Bursts of up to a second's worth of connections are accepted.
+	 */
+	long acceptInterval = 0;
+
+	/**
+	 * Admits a new connection from the given address, which has to be released once its session has ended.
+	 *
+	 * @param address The address of the client.
+	 * @return null if the connection was admitted, or the reply to send to the client before closing the connection.
+	 */
+	byte[] admit(InetAddress address)
+	{
+		final byte[] rejection = reserve();
+		if(rejection != null)
+		{
+			return rejection;
+		}
+		if(!admitClient(address))
+		{
+			sessions.decrementAndGet();
+			return TOO_MANY_CONNECTIONS;
+		}
+		return null;
+	}
+
+	/**
+	 * Admits a new connection whose client isn't known yet, i.e. one that waits for its PROXY protocol header, against the accept rate and the number of sessions.
+	 * Once the client is known, it has to be admitted with {@link #admitClient(InetAddress)}. Either way, the connection has to be released once its session has ended.
+	 *
+	 * @return null if the connection was admitted, or the reply to send to the client before closing the connection.
+	 */
+	byte[] reserve()
+	{
+		if(acceptInterval > 0 && !acquireAcceptRate())
+		{
+			return TOO_BUSY;
+		}
+		int count;
+		do
+		{
+			count = sessions.get();
+			if(maxSessions >= 0 && count >= maxSessions)
+			{
+				return TOO_BUSY;
+			}
+		}
+		while(!sessions.compareAndSet(count, count + 1));
+		return null;
+	}
+
+	/**
+	 * Admits the client of a connection that has been admitted with {@link #reserve()} against the number of sessions per client network.
+	 *
+	 * @param address The address of the client.
+	 * @return False if the client's network has too many sessions.
+	 */
+	boolean admitClient(InetAddress address)
+	{
+		if(maxClientSessions < 0)
+		{
+			return true;
+		}
+		final boolean[] admitted = new boolean[]{false};
+		clientSessions.compute(getNetwork(address), (network, clientCount)->
+		{
+			if(clientCount == null)
+			{
+				clientCount = 0;
+			}
+			if(clientCount >= maxClientSessions)
+			{
+				return (clientCount == 0 ? null : clientCount);
+			}
+			admitted[0] = true;
+			return clientCount + 1;
+		});
+		return admitted[0];
+	}
+
+	/**
+	 * Releases a connection that has been admitted.
+	 *
+	 * @param address The address of the client, or null if the connection has only been admitted with {@link #reserve()}.
+	 */
+	void release(InetAddress address)
+	{
+		sessions.decrementAndGet();
+		if(address != null)
+		{
+			releaseClient(address);
+		}
+	}
+
+	/**
+	 * Releases the client of a connection that has been admitted with {@link #admitClient(InetAddress)}, leaving the connection admitted as with {@link #reserve()}.
+	 *
+	 * @param address The address of the client.
+	 */
+	void releaseClient(InetAddress address)
+	{
+		if(maxClientSessions >= 0)
+		{
+			clientSessions.computeIfPresent(getNetwork(address), (network, clientCount)->(clientCount <= 1 ? null : clientCount - 1));
+		}
+	}
+
+	private boolean acquireAcceptRate()
+	{
+		final long burst = TimeUnit.SECONDS.toNanos(1);
+		while(true)
+		{
+			final long now = System.nanoTime();
+			final long next = nextAccept.get();
+			final long updated = Math.max(next, now) + acceptInterval;
+			if(updated - now > burst)
+			{
+				return false;
+			}
+			if(nextAccept.compareAndSet(next, updated))
+			{
+				return true;
+			}
+		}
+	}
+
+	private InetAddress getNetwork(InetAddress address)
+	{
+		final byte[] bytes = address.getAddress();
+		final int prefixLength = (bytes.length == 4 ? ipv4PrefixLength : ipv6PrefixLength);
+		if(prefixLength >= bytes.length * 8)
+		{
+			return address;
+		}
+		for(int i = 0; i < bytes.length; i++)
+		{
+			final int bits = prefixLength - i * 8;
+			if(bits <= 0)
+			{
+				bytes[i] = 0;
+			}
+			else if(bits < 8)
+			{
+				bytes[i] &= (byte) (0xFF << (8 - bits));
+			}
+		}
+		try
+		{
+			return InetAddress.getByAddress(bytes);
+		}
+		catch(UnknownHostException e)
+		{
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
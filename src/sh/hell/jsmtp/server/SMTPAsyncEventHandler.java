@@ -0,0 +1,22 @@
+package sh.hell.jsmtp.server;
+
+import sh.hell.jsmtp.content.SMTPMail;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * An SMTPEventHandler that delivers mails asynchronously.
+ * Override the other asynchronous hooks as well to keep slow backends from occupying session threads or workers.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public abstract class SMTPAsyncEventHandler extends SMTPEventHandler
+{
+	@Override
+	public abstract CompletionStage<Boolean> onMailComposedAsync(SMTPSession session, SMTPMail mail);
+
+	@Override
+	public boolean onMailComposed(SMTPSession session, SMTPMail mail)
+	{
+		return onMailComposedAsync(session, mail).toCompletableFuture().join();
+	}
+}
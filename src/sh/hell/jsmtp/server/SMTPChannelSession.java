@@ -0,0 +1,681 @@
+package sh.hell.jsmtp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An SMTPSession on a non-blocking channel.
+ * The session does not occupy a thread while it is waiting for its client; once its SMTPSelector sees it is ready, one of the server's workers processes what can be read without blocking, up to {@link #READ_QUOTA} bytes, and then hands the session back to the selector.
+ * STARTTLS is implemented with an SSLEngine.
+ */
+class SMTPChannelSession extends SMTPSession
+{
+	private static final Logger logger = LoggerFactory.getLogger(SMTPChannelSession.class);
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	/**
+	 * The number of bytes a worker reads from a session per readiness event. A client that keeps sending is handed back to the selector after that, so it can't hold a worker while other sessions wait, and its replies are flushed in between.
+	 */
+	static final int READ_QUOTA = 65536;
+	private final SocketChannel channel;
+	private final SMTPSelector selector;
+	private final SocketAddress remoteSocketAddress;
+	private final ByteArrayOutputStream appOut = new ByteArrayOutputStream();
+	private final SMTPLineDecoder decoder;
+	private SelectionKey key;
+	/**
+	 * The buffer for TLS records that have not been unwrapped yet, null until STARTTLS.
+	 */
+	private ByteBuffer netIn;
+	private ByteBuffer netOut = ByteBuffer.allocate(4096);
+	private SSLEngine engine;
+	private boolean greeted = false;
+	/**
+	 * True while the greeting waits for the implicit TLS handshake to finish.
+	 */
+	private boolean greetingPending = false;
+	/**
+	 * True from starting the TLS handshake until it has finished, so a session closed in between counts as a failed handshake.
+	 */
+	private boolean handshaking = false;
+	/**
+	 * True while the session waits for an event handler hook, during which no input is processed.
+	 */
+	private boolean suspended = false;
+	/**
+	 * Counts down the worker handing the suspended session back and the hook completing, so the session is only resumed once both happened.
+	 */
+	private final AtomicInteger resumeBarrier = new AtomicInteger();
+	private Runnable resumption;
+
+	SMTPChannelSession(SMTPServer server, SMTPSelector selector, SocketChannel channel, SMTPTLSMode tlsMode) throws IOException
+	{
+		super(server, tlsMode);
+		this.selector = selector;
+		this.channel = channel;
+		this.remoteSocketAddress = channel.getRemoteAddress();
+		this.decoder = new SMTPLineDecoder(server.maxLineLength);
+		channel.configureBlocking(false);
+	}
+
+	/**
+	 * Registers the session with its selector, which will then greet the client.
+	 */
+	void start()
+	{
+		selector.execute(()->
+		{
+			try
+			{
+				key = channel.register(selector.selector, 0, this);
+				dispatch();
+			}
+			catch(ClosedChannelException ignored)
+			{
+				closeTransport();
+			}
+		});
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int space)
+	{
+		final ByteBuffer grown = ByteBuffer.allocate(buffer.position() + Math.max(space, buffer.capacity()));
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+
+	void dispatch()
+	{
+		try
+		{
+			server.workers.execute(this::process);
+		}
+		catch(RejectedExecutionException ignored)
+		{
+			abortMessage();
+			closeTransport();
+		}
+	}
+
+	private void process()
+	{
+		try
+		{
+			if(!greeted)
+			{
+				greeted = true;
+				startTimeout();
+				if(proxyHeader == null)
+				{
+					begin();
+				}
+				read();
+				flush();
+			}
+			else if(writeOut())
+			{
+				read();
+				flush();
+			}
+		}
+		catch(IOException e)
+		{
+			failed(e);
+		}
+		rearm();
+	}
+
+	/**
+	 * Greets the client or, with implicit TLS, starts the handshake, after which the client is greeted.
+	 *
+	 * @throws IOException When writing fails.
+	 */
+	private void begin() throws IOException
+	{
+		if(tlsMode != SMTPTLSMode.IMPLICIT)
+		{
+			greet();
+			return;
+		}
+		// Whatever followed the PROXY protocol header is the beginning of the handshake.
+		final byte[] consumed = (decoder.nextBytes(Integer.MAX_VALUE) ? Arrays.copyOfRange(decoder.array(), decoder.lineOffset, decoder.lineOffset + decoder.lineLength) : null);
+		greetingPending = true;
+		startTLS();
+		if(consumed != null)
+		{
+			if(netIn.remaining() < consumed.length)
+			{
+				netIn = grow(netIn, consumed.length);
+			}
+			netIn.put(consumed);
+			unwrap();
+		}
+	}
+
+	private void failed(IOException e)
+	{
+		if(e instanceof SSLException)
+		{
+			logger.info((hostname == null ? remoteSocketAddress.toString() : hostname) + " = TLS handshake failed: " + e.getMessage());
+		}
+		closed = true;
+	}
+
+	/**
+	 * Hands the session back to its selector, unless it has been closed, is waiting for an event handler hook, or the server is draining and the session is not in a mail transaction.
+	 */
+	private void rearm()
+	{
+		if(closed)
+		{
+			abortMessage();
+			closeTransport();
+		}
+		else if(suspended)
+		{
+			if(resumeBarrier.decrementAndGet() == 0)
+			{
+				dispatchResumption();
+			}
+		}
+		else if(server.draining && !inTransaction())
+		{
+			try
+			{
+				write(SHUTTING_DOWN);
+				flush();
+			}
+			catch(IOException ignored)
+			{
+			}
+			closed = true;
+			abortMessage();
+			closeTransport();
+		}
+		else
+		{
+			final int ops = (netOut.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			selector.execute(()->
+			{
+				if(!key.isValid())
+				{
+					return;
+				}
+				if(server.draining && !inTransaction())
+				{
+					// The server started draining after the check above.
+					dispatchRearm();
+				}
+				else
+				{
+					key.interestOps(ops);
+				}
+			});
+		}
+	}
+
+	private void dispatchRearm()
+	{
+		try
+		{
+			server.workers.execute(this::rearm);
+		}
+		catch(RejectedExecutionException ignored)
+		{
+			abortMessage();
+			closeTransport();
+		}
+	}
+
+	private void read() throws IOException
+	{
+		int read;
+		int quota = READ_QUOTA;
+		do
+		{
+			if(engine == null)
+			{
+				read = channel.read(decoder.buffer(1));
+				if(read < 0)
+				{
+					closed = true;
+					return;
+				}
+				countReceived(read);
+				decode();
+			}
+			else
+			{
+				read = channel.read(netIn);
+				if(read < 0)
+				{
+					closed = true;
+					return;
+				}
+				unwrap();
+			}
+			quota -= read;
+		}
+		while(read > 0 && quota > 0 && !closed && !suspended);
+	}
+
+	/**
+	 * Feeds everything the decoder can hand out to the state machine.
+	 *
+	 * @throws IOException When writing a reply fails.
+	 */
+	private void decode() throws IOException
+	{
+		if(proxyHeader != null)
+		{
+			if(!handleProxyHeader(decoder) || closed)
+			{
+				return;
+			}
+			begin();
+			if(engine != null)
+			{
+				return;
+			}
+		}
+		final SSLEngine engine = this.engine;
+		while(!suspended && handleInput(decoder))
+		{
+			if(closed || this.engine != engine)
+			{
+				// After STARTTLS, the decoder has been cleared and the rest of this read must not be processed.
+				return;
+			}
+		}
+	}
+
+	private void unwrap() throws IOException
+	{
+		netIn.flip();
+		try
+		{
+			while(netIn.hasRemaining() && !closed)
+			{
+				final SSLEngineResult result = engine.unwrap(netIn, decoder.buffer(0));
+				if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+				{
+					decoder.buffer(engine.getSession().getApplicationBufferSize());
+					continue;
+				}
+				if(result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+				{
+					break;
+				}
+				if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+				{
+					closed = true;
+					break;
+				}
+				if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+				{
+					if(logger.isDebugEnabled())
+					{
+						logger.debug((hostname == null ? remoteSocketAddress.toString() : hostname) + " = Cipher suite: " + engine.getSession().getCipherSuite());
+					}
+				}
+				handshake();
+				if(handshaking && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+				{
+					handshaking = false;
+					server.metrics.tlsHandshakes.increment();
+					trace(SMTPTracePhase.TLS_HANDSHAKE_END);
+				}
+				if(greetingPending && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+				{
+					greetingPending = false;
+					greet();
+				}
+				if(result.bytesProduced() > 0)
+				{
+					countReceived(result.bytesProduced());
+					decode();
+				}
+				if(result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+				{
+					break;
+				}
+			}
+		}
+		finally
+		{
+			netIn.compact();
+		}
+		if(!netIn.hasRemaining())
+		{
+			netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+		}
+	}
+
+	private void handshake() throws IOException
+	{
+		while(true)
+		{
+			switch(engine.getHandshakeStatus())
+			{
+				case NEED_TASK:
+					Runnable task;
+					while((task = engine.getDelegatedTask()) != null)
+					{
+						task.run();
+					}
+					break;
+				case NEED_WRAP:
+					wrap(EMPTY);
+					break;
+				default:
+					return;
+			}
+		}
+	}
+
+	private void wrap(ByteBuffer src) throws IOException
+	{
+		while(true)
+		{
+			final SSLEngineResult result = engine.wrap(src, netOut);
+			if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+			{
+				netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+				continue;
+			}
+			if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+			{
+				throw new SSLException("The TLS session has been closed.");
+			}
+			if(result.bytesConsumed() == 0 && src.hasRemaining() && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP)
+			{
+				// Replies can't be sent before the client has finished the handshake.
+				throw new SSLException("The TLS handshake has not finished.");
+			}
+			if(!src.hasRemaining())
+			{
+				break;
+			}
+			handshake();
+		}
+	}
+
+	/**
+	 * Writes as much pending output as the channel accepts without blocking.
+	 *
+	 * @return True if no output is pending anymore.
+	 * @throws IOException When writing fails.
+	 */
+	private boolean writeOut() throws IOException
+	{
+		netOut.flip();
+		try
+		{
+			while(netOut.hasRemaining())
+			{
+				if(channel.write(netOut) == 0)
+				{
+					break;
+				}
+			}
+			return !netOut.hasRemaining();
+		}
+		finally
+		{
+			netOut.compact();
+		}
+	}
+
+	@Override
+	<T> void suspend(CompletableFuture<T> future, HookContinuation<T> continuation)
+	{
+		suspended = true;
+		resumeBarrier.set(2);
+		final AtomicBoolean resumed = new AtomicBoolean(false);
+		final SMTPTimer timer = server.timer;
+		final SMTPTimer.Timeout hookTimeout;
+		if(server.hookTimeout > 0 && timer != null)
+		{
+			hookTimeout = timer.schedule(()->
+			{
+				if(resumed.compareAndSet(false, true))
+				{
+					hookTimedOut();
+					resume(continuation, null);
+				}
+			}, server.hookTimeout);
+		}
+		else
+		{
+			hookTimeout = null;
+		}
+		future.whenComplete((result, e)->
+		{
+			if(resumed.compareAndSet(false, true))
+			{
+				if(hookTimeout != null)
+				{
+					hookTimeout.cancel();
+				}
+				if(e != null)
+				{
+					hookFailed(e.getCause() == null ? e : e.getCause());
+				}
+				resume(continuation, e == null ? result : null);
+			}
+		});
+	}
+
+	private <T> void resume(HookContinuation<T> continuation, T result)
+	{
+		resumption = ()->
+		{
+			try
+			{
+				suspended = false;
+				continuation.resume(result);
+				decode();
+				if(!suspended && !closed)
+				{
+					read();
+				}
+				flush();
+			}
+			catch(IOException e)
+			{
+				failed(e);
+			}
+			rearm();
+		};
+		if(resumeBarrier.decrementAndGet() == 0)
+		{
+			dispatchResumption();
+		}
+	}
+
+	/**
+	 * Lets a worker continue the suspended command and then process the input that arrived in the meantime.
+	 */
+	private void dispatchResumption()
+	{
+		try
+		{
+			server.workers.execute(resumption);
+		}
+		catch(RejectedExecutionException ignored)
+		{
+			abortMessage();
+			closeTransport();
+		}
+	}
+
+	/**
+	 * Takes the session away from the selector if it is waiting for its client, and lets a worker close it.
+	 * A session that is being processed or waiting for a hook is checked again a tick later.
+	 */
+	@Override
+	void timedOut()
+	{
+		selector.execute(()->
+		{
+			final SMTPTimer timer = server.timer;
+			if(closed || timer == null)
+			{
+				return;
+			}
+			final long deadline = timeout.deadline;
+			if(deadline == 0 || deadline - System.nanoTime() > 0)
+			{
+				// The session has received something since the timer fired.
+				timer.schedule(timeout);
+				return;
+			}
+			if(key == null || !key.isValid() || key.interestOps() == 0)
+			{
+				timer.schedule(timeout);
+				return;
+			}
+			key.interestOps(0);
+			try
+			{
+				server.workers.execute(()->
+				{
+					try
+					{
+						write(TIMED_OUT);
+						flush();
+					}
+					catch(IOException ignored)
+					{
+					}
+					closed = true;
+					rearm();
+				});
+			}
+			catch(RejectedExecutionException ignored)
+			{
+				abortMessage();
+				closeTransport();
+			}
+		});
+	}
+
+	/**
+	 * Takes the session away from the selector if it is waiting for its client, and lets a worker close it unless it is in a mail transaction.
+	 * A session that is being processed checks for itself once it is handed back.
+	 */
+	@Override
+	void drain()
+	{
+		selector.execute(()->
+		{
+			if(closed || key == null || !key.isValid() || key.interestOps() == 0)
+			{
+				return;
+			}
+			key.interestOps(0);
+			dispatchRearm();
+		});
+	}
+
+	@Override
+	void send(byte[] data, int offset, int length)
+	{
+		appOut.write(data, offset, length);
+	}
+
+	@Override
+	void flush() throws IOException
+	{
+		if(appOut.size() > 0)
+		{
+			final ByteBuffer data = ByteBuffer.wrap(appOut.toByteArray());
+			appOut.reset();
+			if(engine == null)
+			{
+				if(netOut.remaining() < data.remaining())
+				{
+					netOut = grow(netOut, data.remaining());
+				}
+				netOut.put(data);
+			}
+			else
+			{
+				wrap(data);
+			}
+		}
+		writeOut();
+		flushed();
+	}
+
+	@Override
+	void startTLS() throws IOException
+	{
+		engine = server.sslContext.createSSLEngine();
+		engine.setUseClientMode(false);
+		server.tlsProfile.configure(engine);
+		netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		decoder.clear();
+		handshaking = true;
+		trace(SMTPTracePhase.TLS_HANDSHAKE_START);
+		engine.beginHandshake();
+	}
+
+	@Override
+	void closeTransport()
+	{
+		try
+		{
+			channel.close();
+		}
+		catch(IOException ignored)
+		{
+		}
+		if(handshaking)
+		{
+			handshaking = false;
+			server.metrics.failedTLSHandshakes.increment();
+		}
+		server.sessionEnded(this);
+	}
+
+	@Override
+	SocketAddress getRemoteSocketAddress()
+	{
+		return remoteSocketAddress;
+	}
+
+	@Override
+	boolean isTLSAvailable()
+	{
+		return tlsMode == SMTPTLSMode.STARTTLS && server.sslContext != null;
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return channel.isOpen();
+	}
+
+	@Override
+	public boolean isEncrypted()
+	{
+		return engine != null;
+	}
+}
@@ -0,0 +1,55 @@
+package sh.hell.jsmtp.server;
+
+import java.io.IOException;
+
+/**
+ * An SMTP command a session can be sent, identified by its verb.
+ *
+ * @see SMTPServer#registerCommand(String, SMTPCommand)
+ */
+@FunctionalInterface
+public interface SMTPCommand
+{
+	/**
+	 * Returns a command that doesn't require the client to have sent HELO or EHLO first.
+	 *
+	 * @param command The command.
+	 * @return a command that doesn't require the client to have sent HELO or EHLO first.
+	 */
+	static SMTPCommand allowedBeforeHello(SMTPCommand command)
+	{
+		return new SMTPCommand()
+		{
+			@Override
+			public void execute(SMTPSession session, String argument) throws IOException
+			{
+				command.execute(session, argument);
+			}
+
+			@Override
+			public boolean requiresHello()
+			{
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Executes the command. Every command has to write exactly one reply using {@link SMTPSession#write(String)}.
+	 *
+	 * @param session  The session the command was sent in.
+	 * @param argument Everything after the verb and the space following it, or an empty string.
+	 * @throws IOException When writing the reply fails.
+	 */
+	void execute(SMTPSession session, String argument) throws IOException;
+
+	/**
+	 * Returns whether the client has to send HELO or EHLO before this command. If so, the command is answered with 503 otherwise.
+	 *
+	 * @return whether the client has to send HELO or EHLO before this command.
+	 */
+	default boolean requiresHello()
+	{
+		return true;
+	}
+}
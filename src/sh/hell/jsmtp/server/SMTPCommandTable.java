@@ -0,0 +1,141 @@
+package sh.hell.jsmtp.server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Maps verbs to SMTPCommands.
+ * Verbs of up to 8 bytes are packed into a long with their letters uppercased, so a command can be looked up straight from the received bytes without allocating or case-converting Strings.
+ * Each verb has its latency histogram right next to its command.
+ */
+class SMTPCommandTable
+{
+	private final SMTPMetrics metrics;
+	private long[] keys = new long[32];
+	private SMTPCommand[] commands = new SMTPCommand[32];
+	private SMTPLatencyHistogram[] latencies = new SMTPLatencyHistogram[32];
+	private int size = 0;
+
+	SMTPCommandTable(SMTPMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Packs the given verb into a key.
+	 *
+	 * @param arr    The array containing the verb.
+	 * @param offset The offset of the verb.
+	 * @param length The length of the verb.
+	 * @return The key, or 0 if the verb is empty, longer than 8 bytes or contains bytes that aren't printable ASCII.
+	 */
+	static long key(byte[] arr, int offset, int length)
+	{
+		if(length < 1 || length > 8)
+		{
+			return 0;
+		}
+		long key = 0;
+		for(int i = offset; i < offset + length; i++)
+		{
+			int b = arr[i];
+			if(b < 0x21 || b > 0x7E)
+			{
+				return 0;
+			}
+			if(b >= 'a' && b <= 'z')
+			{
+				b -= ('a' - 'A');
+			}
+			key = (key << 8) | b;
+		}
+		return key;
+	}
+
+	private static int slot(long key, int mask)
+	{
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+	}
+
+	void put(String verb, SMTPCommand command)
+	{
+		final byte[] bytes = verb.getBytes(StandardCharsets.US_ASCII);
+		final long key = key(bytes, 0, bytes.length);
+		if(key == 0)
+		{
+			throw new IllegalArgumentException("Invalid verb: " + verb);
+		}
+		if((size + 1) * 2 > keys.length)
+		{
+			final long[] oldKeys = keys;
+			final SMTPCommand[] oldCommands = commands;
+			final SMTPLatencyHistogram[] oldLatencies = latencies;
+			keys = new long[oldKeys.length * 2];
+			commands = new SMTPCommand[oldKeys.length * 2];
+			latencies = new SMTPLatencyHistogram[oldKeys.length * 2];
+			size = 0;
+			for(int i = 0; i < oldKeys.length; i++)
+			{
+				if(oldKeys[i] != 0)
+				{
+					insert(oldKeys[i], oldCommands[i], oldLatencies[i]);
+				}
+			}
+		}
+		insert(key, command, metrics.command(verb));
+	}
+
+	private void insert(long key, SMTPCommand command, SMTPLatencyHistogram latency)
+	{
+		final int mask = keys.length - 1;
+		int i = slot(key, mask);
+		while(keys[i] != 0 && keys[i] != key)
+		{
+			i = (i + 1) & mask;
+		}
+		if(keys[i] == 0)
+		{
+			keys[i] = key;
+			size++;
+		}
+		commands[i] = command;
+		latencies[i] = latency;
+	}
+
+	/**
+	 * Looks up the given verb.
+	 *
+	 * @param arr    The array containing the verb.
+	 * @param offset The offset of the verb.
+	 * @param length The length of the verb.
+	 * @return The index of the verb's command, or -1 if there is none.
+	 */
+	int indexOf(byte[] arr, int offset, int length)
+	{
+		final long key = key(arr, offset, length);
+		if(key == 0)
+		{
+			return -1;
+		}
+		final int mask = keys.length - 1;
+		int i = slot(key, mask);
+		while(keys[i] != 0)
+		{
+			if(keys[i] == key)
+			{
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	SMTPCommand command(int index)
+	{
+		return commands[index];
+	}
+
+	SMTPLatencyHistogram latency(int index)
+	{
+		return latencies[index];
+	}
+}
@@ -0,0 +1,29 @@
+package sh.hell.jsmtp.server;
+
+/**
+ * The outcome of stopping an SMTPServer gracefully, see {@link SMTPServer#stop(java.time.Duration)}.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class SMTPDrainResult
+{
+	/**
+	 * The number of sessions that ended on their own or after their mail transaction was done.
+	 */
+	public final int drained;
+	/**
+	 * The number of sessions that were still open at the deadline and have been closed, possibly in the middle of a mail transaction.
+	 */
+	public final int killed;
+
+	SMTPDrainResult(int drained, int killed)
+	{
+		this.drained = drained;
+		this.killed = killed;
+	}
+
+	@Override
+	public String toString()
+	{
+		return drained + " drained, " + killed + " killed";
+	}
+}
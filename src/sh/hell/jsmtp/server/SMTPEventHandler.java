@@ -3,6 +3,9 @@ package sh.hell.jsmtp.server;
 import sh.hell.jsmtp.content.SMTPAddress;
 import sh.hell.jsmtp.content.SMTPMail;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 @SuppressWarnings({"WeakerAccess", "unused"})
 public abstract class SMTPEventHandler
 {
@@ -50,11 +53,100 @@ public abstract class SMTPEventHandler
 		return true;
 	}
 
+	/**
+	 * Asynchronous variant of {@link #isSenderAccepted(SMTPSession, SMTPAddress)}, which is what the server calls.
+	 * Override it to answer without occupying the session's thread, e.g. after a slow directory lookup.
+	 * If the result fails or takes longer than the server's hook timeout, the client is answered with 451.
+	 *
+	 * @param session The SMTPSession of the composer.
+	 * @param address The sender's address.
+	 * @return Whether the sender is accepted.
+	 */
+	public CompletionStage<Boolean> isSenderAcceptedAsync(SMTPSession session, SMTPAddress address)
+	{
+		return CompletableFuture.completedFuture(isSenderAccepted(session, address));
+	}
+
 	public boolean isRecipientAccepted(SMTPSession session, SMTPAddress address)
 	{
 		return true;
 	}
 
+	/**
+	 * Asynchronous variant of {@link #isRecipientAccepted(SMTPSession, SMTPAddress)}, which is what the server calls for RCPT and VRFY.
+	 *
+	 * @param session The SMTPSession of the composer.
+	 * @param address The recipient's address.
+	 * @return Whether the recipient is accepted.
+	 * @see #isSenderAcceptedAsync(SMTPSession, SMTPAddress)
+	 */
+	public CompletionStage<Boolean> isRecipientAcceptedAsync(SMTPSession session, SMTPAddress address)
+	{
+		return CompletableFuture.completedFuture(isRecipientAccepted(session, address));
+	}
+
+	/**
+	 * Called when the client starts sending the raw mail, after DATA or the first BDAT chunk.
+	 * Return true to have the raw mail streamed to {@link #onData(SMTPSession, SMTPMail, byte[], int, int)} and {@link #onDataEnd(SMTPSession, SMTPMail)} instead of having it buffered, parsed and passed to {@link #onMailComposed(SMTPSession, SMTPMail)}.
+	 *
+	 * @param session The SMTPSession of the composer.
+	 * @param mail    The email being composed, with its sender and recipients.
+	 * @return True if the raw mail should be streamed.
+	 */
+	public boolean onDataStart(SMTPSession session, SMTPMail mail)
+	{
+		return false;
+	}
+
+	/**
+	 * Receives the next bytes of a streamed raw mail, which consists of its header section, an empty line and its body, with CRLF line endings and without dot-stuffing.
+	 * The mail's headers are not parsed for streamed mails.
+	 *
+	 * @param session The SMTPSession of the composer.
+	 * @param mail    The email being composed.
+	 * @param data    The array containing the bytes, which is reused after this call returns.
+	 * @param offset  The offset of the bytes in the array.
+	 * @param length  The number of bytes.
+	 */
+	public void onData(SMTPSession session, SMTPMail mail, byte[] data, int offset, int length)
+	{
+	}
+
+	/**
+	 * Completes a streamed raw mail.
+	 *
+	 * @param session The SMTPSession of the composer.
+	 * @param mail    The email that has been composed.
+	 * @return The reply code to send to the client, e.g. 250 if delivery was successful, 451 if it should be retried or 554 if it failed.
+	 */
+	public int onDataEnd(SMTPSession session, SMTPMail mail)
+	{
+		return 554;
+	}
+
+	/**
+	 * Asynchronous variant of {@link #onDataEnd(SMTPSession, SMTPMail)}, which is what the server calls.
+	 *
+	 * @param session The SMTPSession of the composer.
+	 * @param mail    The email that has been composed.
+	 * @return The reply code to send to the client.
+	 * @see #isSenderAcceptedAsync(SMTPSession, SMTPAddress)
+	 */
+	public CompletionStage<Integer> onDataEndAsync(SMTPSession session, SMTPMail mail)
+	{
+		return CompletableFuture.completedFuture(onDataEnd(session, mail));
+	}
+
+	/**
+	 * Called instead of {@link #onDataEnd(SMTPSession, SMTPMail)} if a streamed raw mail has been rejected by the server or abandoned by the client.
+	 *
+	 * @param session The SMTPSession of the composer.
+	 * @param mail    The email that was being composed.
+	 */
+	public void onDataAborted(SMTPSession session, SMTPMail mail)
+	{
+	}
+
 	/**
 	 * Delivers the composed mail.
 	 *
@@ -63,4 +155,17 @@ public abstract class SMTPEventHandler
 	 * @return True if delivery was successful.
 	 */
 	public abstract boolean onMailComposed(SMTPSession session, SMTPMail mail);
+
+	/**
+	 * Asynchronous variant of {@link #onMailComposed(SMTPSession, SMTPMail)}, which is what the server calls.
+	 *
+	 * @param session The SMTPSession of the composer.
+	 * @param mail    The email that has been composed.
+	 * @return True if delivery was successful.
+	 * @see #isSenderAcceptedAsync(SMTPSession, SMTPAddress)
+	 */
+	public CompletionStage<Boolean> onMailComposedAsync(SMTPSession session, SMTPMail mail)
+	{
+		return CompletableFuture.completedFuture(onMailComposed(session, mail));
+	}
 }
@@ -0,0 +1,143 @@
+package sh.hell.jsmtp.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in microseconds, which any number of threads can record into at once.
+ * Buckets are log-linear with 8 sub-buckets per power of two, so reported percentiles are at most 12.5% above the actual latency.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class SMTPLatencyHistogram implements SMTPLatencyHistogramMBean
+{
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/**
+	 * Latencies from 2^36 microseconds, about 19 hours, end up in the last bucket.
+	 */
+	private static final int MAX_EXPONENT = 36;
+	private final AtomicLongArray buckets = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	private static int index(long micros)
+	{
+		if(micros < SUB_BUCKETS)
+		{
+			return (int) Math.max(0, micros);
+		}
+		final int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+		final int subBucket = (exponent == MAX_EXPONENT && micros >= (1L << (MAX_EXPONENT + 1)) ? SUB_BUCKETS - 1 : (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Returns the highest latency that falls into the given bucket.
+	 *
+	 * @param index The index of the bucket.
+	 * @return The highest latency in microseconds.
+	 */
+	private static long highestValue(int index)
+	{
+		if(index < SUB_BUCKETS)
+		{
+			return index;
+		}
+		final int shift = index / SUB_BUCKETS - 1;
+		return ((long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift) - 1;
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos The latency in nanoseconds, e.g. the difference between two calls to System.nanoTime.
+	 */
+	public void record(long nanos)
+	{
+		final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		buckets.incrementAndGet(index(micros));
+		count.increment();
+		sum.add(micros);
+		max.accumulate(micros);
+	}
+
+	@Override
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	@Override
+	public double getMean()
+	{
+		final long count = this.count.sum();
+		return (count == 0 ? 0 : (double) sum.sum() / count);
+	}
+
+	@Override
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Returns the latency the given share of recorded latencies doesn't exceed.
+	 * While latencies are being recorded, the result is approximate, as the buckets aren't read atomically.
+	 *
+	 * @param percentile The percentile, between 0 and 100.
+	 * @return The latency in microseconds, or 0 if none have been recorded.
+	 */
+	@Override
+	public long getPercentile(double percentile)
+	{
+		final long[] counts = new long[buckets.length()];
+		long total = 0;
+		for(int i = 0; i < counts.length; i++)
+		{
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if(total == 0)
+		{
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if(seen >= rank)
+			{
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	public long get50thPercentile()
+	{
+		return getPercentile(50);
+	}
+
+	@Override
+	public long get90thPercentile()
+	{
+		return getPercentile(90);
+	}
+
+	@Override
+	public long get99thPercentile()
+	{
+		return getPercentile(99);
+	}
+
+	@Override
+	public long get999thPercentile()
+	{
+		return getPercentile(99.9);
+	}
+}
@@ -0,0 +1,24 @@
+package sh.hell.jsmtp.server;
+
+/**
+ * The JMX view of an {@link SMTPLatencyHistogram}. All latencies are in microseconds.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public interface SMTPLatencyHistogramMBean
+{
+	long getCount();
+
+	double getMean();
+
+	long getMax();
+
+	long getPercentile(double percentile);
+
+	long get50thPercentile();
+
+	long get90thPercentile();
+
+	long get99thPercentile();
+
+	long get999thPercentile();
+}
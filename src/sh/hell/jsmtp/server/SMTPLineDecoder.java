@@ -0,0 +1,205 @@
+package sh.hell.jsmtp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes received from a client into CRLF-terminated lines without decoding them.
+ * Only CRLF ends a line; a bare LF is kept as part of the line and reported through {@link #bareLF}.
+ * Lines longer than the limit are cut off, reported through {@link #lineTooLong}, and the rest of them is discarded.
+ */
+class SMTPLineDecoder
+{
+	private final int maxLineLength;
+	/**
+	 * The buffer in fill mode. The bytes between {@link #consumed} and its position have not been handed out yet.
+	 */
+	private ByteBuffer buffer;
+	private int consumed = 0;
+	private int scanned = 0;
+	private boolean discarding = false;
+	private boolean pendingBareLF = false;
+	/**
+	 * The offset of the current line in {@link #array()}.
+	 */
+	int lineOffset;
+	/**
+	 * The length of the current line without its CRLF.
+	 */
+	int lineLength;
+	/**
+	 * True if the current line was longer than the limit, in which case only its beginning is available.
+	 */
+	boolean lineTooLong;
+	/**
+	 * True if the current line contains an LF that isn't preceded by a CR.
+	 */
+	boolean bareLF;
+
+	SMTPLineDecoder(int maxLineLength)
+	{
+		this.maxLineLength = maxLineLength;
+		this.buffer = ByteBuffer.allocate(Math.max(4096, maxLineLength + 2));
+	}
+
+	byte[] array()
+	{
+		return buffer.array();
+	}
+
+	/**
+	 * Makes the next complete line available through {@link #lineOffset} and {@link #lineLength}.
+	 *
+	 * @return False if no complete line is buffered.
+	 */
+	boolean next()
+	{
+		final byte[] arr = buffer.array();
+		final int end = buffer.position();
+		for(int i = scanned; i < end; i++)
+		{
+			if(arr[i] != '\n')
+			{
+				continue;
+			}
+			if(i == consumed || arr[i - 1] != '\r')
+			{
+				pendingBareLF = true;
+				continue;
+			}
+			if(discarding)
+			{
+				discarding = false;
+				pendingBareLF = false;
+				consumed = i + 1;
+				continue;
+			}
+			lineOffset = consumed;
+			lineLength = i - 1 - consumed;
+			lineTooLong = (lineLength > maxLineLength);
+			if(lineTooLong)
+			{
+				lineLength = maxLineLength;
+			}
+			bareLF = pendingBareLF;
+			pendingBareLF = false;
+			consumed = scanned = i + 1;
+			return true;
+		}
+		scanned = end;
+		if(end - consumed > maxLineLength + 1)
+		{
+			// Keep the last byte, which might be the CR of the CRLF that ends the line.
+			if(discarding)
+			{
+				consumed = end - 1;
+				return false;
+			}
+			lineOffset = consumed;
+			lineLength = maxLineLength;
+			lineTooLong = true;
+			bareLF = pendingBareLF;
+			discarding = true;
+			consumed = end - 1;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Makes the next buffered bytes available through {@link #lineOffset} and {@link #lineLength}, regardless of line endings.
+	 *
+	 * @param max The maximum number of bytes.
+	 * @return False if no bytes are buffered.
+	 */
+	boolean nextBytes(long max)
+	{
+		final int available = buffer.position() - consumed;
+		if(available == 0)
+		{
+			return false;
+		}
+		lineOffset = consumed;
+		lineLength = (int) Math.min(available, max);
+		lineTooLong = bareLF = pendingBareLF = false;
+		consumed = scanned = consumed + lineLength;
+		return true;
+	}
+
+	/**
+	 * Returns the number of buffered bytes that have not been handed out yet.
+	 *
+	 * @return the number of buffered bytes that have not been handed out yet.
+	 */
+	int available()
+	{
+		return buffer.position() - consumed;
+	}
+
+	/**
+	 * Returns a buffered byte without handing it out.
+	 *
+	 * @param index The index of the byte, counting from the first byte that has not been handed out yet.
+	 * @return The byte.
+	 */
+	byte peek(int index)
+	{
+		return buffer.array()[consumed + index];
+	}
+
+	/**
+	 * Returns the buffer to receive more bytes into, after making sure it has room for at least the given number of bytes.
+	 * This invalidates the current line.
+	 *
+	 * @param space The number of bytes that need to fit.
+	 * @return The buffer in fill mode.
+	 */
+	ByteBuffer buffer(int space)
+	{
+		if(consumed > 0)
+		{
+			final byte[] arr = buffer.array();
+			System.arraycopy(arr, consumed, arr, 0, buffer.position() - consumed);
+			buffer.position(buffer.position() - consumed);
+			scanned -= consumed;
+			consumed = 0;
+		}
+		if(buffer.remaining() < space)
+		{
+			final ByteBuffer grown = ByteBuffer.allocate(buffer.position() + Math.max(space, buffer.capacity()));
+			buffer.flip();
+			grown.put(buffer);
+			buffer = grown;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Reads as many bytes as are available from the given stream, blocking if none are.
+	 *
+	 * @param in The stream.
+	 * @return The number of bytes read, or -1 at the end of the stream.
+	 * @throws IOException When reading fails.
+	 */
+	int fill(InputStream in) throws IOException
+	{
+		final ByteBuffer buffer = buffer(1);
+		final int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+		if(read > 0)
+		{
+			buffer.position(buffer.position() + read);
+		}
+		return read;
+	}
+
+	/**
+	 * Discards everything that has been buffered, e.g. plaintext that followed STARTTLS.
+	 */
+	void clear()
+	{
+		buffer.clear();
+		consumed = scanned = 0;
+		discarding = pendingBareLF = false;
+	}
+}
@@ -1,22 +1,158 @@
 package sh.hell.jsmtp.server;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * An acceptor thread of an SMTPServer. A port has as many listeners as the server has acceptor threads, which either have a socket of their own bound with SO_REUSEPORT, so the kernel spreads new connections over them, or share a single socket.
+ */
 public class SMTPListener extends Thread
 {
+	/**
+	 * StandardSocketOptions.SO_REUSEPORT, looked up reflectively so jSMTP still runs on Java 8, or null if it's unavailable.
+	 */
+	private static final SocketOption<Boolean> SO_REUSEPORT = getReusePortOption();
 	public final ServerSocket socket;
+	public final SMTPTLSMode tlsMode;
+	/**
+	 * True if connections start with a PROXY protocol header, in which case clients are only admitted once it has been read.
+	 */
+	public final boolean proxyProtocol;
+	private final ServerSocketChannel channel;
 	private final SMTPServer server;
 
-	SMTPListener(SMTPServer server, int port) throws IOException
+	private SMTPListener(SMTPServer server, ServerSocket socket, ServerSocketChannel channel, SMTPTLSMode tlsMode, boolean proxyProtocol)
 	{
 		super("SMTPListener");
 		this.server = server;
-		this.socket = new ServerSocket(port);
+		this.socket = socket;
+		this.channel = channel;
+		this.tlsMode = tlsMode;
+		this.proxyProtocol = proxyProtocol;
 		this.start();
 	}
 
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption()
+	{
+		try
+		{
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		}
+		catch(ReflectiveOperationException ignored)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Binds the given port and starts the server's acceptor threads for it.
+	 *
+	 * @param server    The server.
+	 * @param port      The port, or 0 for any free port.
+	 * @param tlsMode   How the port uses TLS.
+	 * @param listeners The list to add the listeners to.
+	 * @throws IOException When the port can't be bound.
+	 */
+	static void listen(SMTPServer server, int port, SMTPTLSMode tlsMode, List<SMTPListener> listeners) throws IOException
+	{
+		final boolean reusePort = (server.acceptorThreads > 1 && isReusePortSupported(server));
+		boolean proxyProtocol = false;
+		for(int proxyProtocolPort : server.proxyProtocolPorts)
+		{
+			proxyProtocol |= (proxyProtocolPort == port);
+		}
+		final SMTPListener first = open(server, port, tlsMode, proxyProtocol, reusePort);
+		listeners.add(first);
+		for(int i = 1; i < server.acceptorThreads; i++)
+		{
+			listeners.add(reusePort ? open(server, first.socket.getLocalPort(), tlsMode, proxyProtocol, true) : new SMTPListener(server, first.socket, first.channel, tlsMode, proxyProtocol));
+		}
+	}
+
+	private static SMTPListener open(SMTPServer server, int port, SMTPTLSMode tlsMode, boolean proxyProtocol, boolean reusePort) throws IOException
+	{
+		final InetSocketAddress address = new InetSocketAddress(server.bindAddress, port);
+		if(server.isNonBlocking())
+		{
+			final ServerSocketChannel channel = ServerSocketChannel.open();
+			try
+			{
+				if(reusePort)
+				{
+					channel.setOption(SO_REUSEPORT, true);
+				}
+				channel.bind(address, server.backlog);
+			}
+			catch(IOException e)
+			{
+				channel.close();
+				throw e;
+			}
+			return new SMTPListener(server, channel.socket(), channel, tlsMode, proxyProtocol);
+		}
+		final ServerSocket socket = new ServerSocket();
+		try
+		{
+			if(reusePort)
+			{
+				// ServerSocket.setOption is only available as of Java 9.
+				ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class).invoke(socket, SO_REUSEPORT, true);
+			}
+			socket.bind(address, server.backlog);
+		}
+		catch(ReflectiveOperationException e)
+		{
+			socket.close();
+			throw new IOException("Failed to enable SO_REUSEPORT: " + e.getMessage());
+		}
+		catch(IOException e)
+		{
+			socket.close();
+			throw e;
+		}
+		return new SMTPListener(server, socket, null, tlsMode, proxyProtocol);
+	}
+
+	private static boolean isReusePortSupported(SMTPServer server)
+	{
+		if(SO_REUSEPORT == null)
+		{
+			return false;
+		}
+		try
+		{
+			if(server.isNonBlocking())
+			{
+				try(ServerSocketChannel channel = ServerSocketChannel.open())
+				{
+					return channel.supportedOptions().contains(SO_REUSEPORT);
+				}
+			}
+			final Method supportedOptions = ServerSocket.class.getMethod("supportedOptions");
+			try(ServerSocket socket = new ServerSocket())
+			{
+				return ((Set<?>) supportedOptions.invoke(socket)).contains(SO_REUSEPORT);
+			}
+		}
+		catch(IOException | ReflectiveOperationException ignored)
+		{
+			return false;
+		}
+	}
+
 	@Override
 	public void run()
 	{
@@ -24,23 +160,13 @@ public class SMTPListener extends Thread
 		{
 			do
 			{
-				Socket clientSocket = socket.accept();
-				try
+				if(channel != null)
 				{
-					if(server.eventHandler.isIPAccepted(clientSocket.getRemoteSocketAddress().toString()))
-					{
-						synchronized(server.sessions)
-						{
-							server.sessions.add(new SMTPSession(server, clientSocket));
-						}
-					}
-					else
-					{
-						clientSocket.close();
-					}
+					acceptChannel();
 				}
-				catch(IOException ignored)
+				else
 				{
+					acceptSocket();
 				}
 			}
 			while(!this.isInterrupted());
@@ -49,4 +175,120 @@ public class SMTPListener extends Thread
 		{
 		}
 	}
+
+	private void acceptSocket() throws IOException
+	{
+		Socket clientSocket = socket.accept();
+		try
+		{
+			final InetAddress address = clientSocket.getInetAddress();
+			// Connections using the PROXY protocol don't count against the limits per client until their header names the client.
+			final byte[] rejection = (proxyProtocol ? server.reserve() : server.admit(address));
+			if(rejection != null)
+			{
+				// A client that is starting an implicit TLS handshake can't be sent a reply.
+				if(tlsMode != SMTPTLSMode.IMPLICIT)
+				{
+					clientSocket.getOutputStream().write(rejection);
+				}
+				clientSocket.close();
+				return;
+			}
+			if(!proxyProtocol && !server.isIPAccepted(clientSocket.getRemoteSocketAddress().toString()))
+			{
+				server.admission.release(address);
+				clientSocket.close();
+				return;
+			}
+			final SMTPSocketSession session;
+			try
+			{
+				session = new SMTPSocketSession(server, clientSocket, tlsMode);
+			}
+			catch(IOException e)
+			{
+				server.admission.release(proxyProtocol ? null : address);
+				throw e;
+			}
+			admitted(session, address);
+			try
+			{
+				server.sessionExecutor.execute(session);
+			}
+			catch(RejectedExecutionException ignored)
+			{
+				server.sessionEnded(session);
+				if(tlsMode != SMTPTLSMode.IMPLICIT)
+				{
+					clientSocket.getOutputStream().write(SMTPAdmission.TOO_BUSY);
+				}
+				clientSocket.close();
+			}
+		}
+		catch(IOException ignored)
+		{
+		}
+	}
+
+	private void acceptChannel() throws IOException
+	{
+		SocketChannel clientChannel = channel.accept();
+		try
+		{
+			final InetAddress address = ((InetSocketAddress) clientChannel.getRemoteAddress()).getAddress();
+			// Connections using the PROXY protocol don't count against the limits per client until their header names the client.
+			final byte[] rejection = (proxyProtocol ? server.reserve() : server.admit(address));
+			if(rejection != null)
+			{
+				// A client that is starting an implicit TLS handshake can't be sent a reply.
+				if(tlsMode != SMTPTLSMode.IMPLICIT)
+				{
+					clientChannel.write(ByteBuffer.wrap(rejection));
+				}
+				clientChannel.close();
+				return;
+			}
+			if(!proxyProtocol && !server.isIPAccepted(clientChannel.getRemoteAddress().toString()))
+			{
+				server.admission.release(address);
+				clientChannel.close();
+				return;
+			}
+			final SMTPChannelSession session;
+			try
+			{
+				session = new SMTPChannelSession(server, server.nextSelector(), clientChannel, tlsMode);
+			}
+			catch(IOException e)
+			{
+				server.admission.release(proxyProtocol ? null : address);
+				throw e;
+			}
+			admitted(session, address);
+			session.start();
+		}
+		catch(IOException ignored)
+		{
+		}
+	}
+
+	/**
+	 * Adds the given session to the server. With the PROXY protocol, the session admits its client itself once it knows who it is.
+	 *
+	 * @param session The session.
+	 * @param address The address of the peer.
+	 */
+	private void admitted(SMTPSession session, InetAddress address)
+	{
+		session.admitted = true;
+		if(proxyProtocol)
+		{
+			session.proxyHeader = new SMTPProxyHeader();
+		}
+		else
+		{
+			session.admittedAddress = address;
+		}
+		server.sessionStarted(session);
+	}
 }
@@ -0,0 +1,58 @@
+package sh.hell.jsmtp.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks how many bytes of received mails all sessions of a server hold in memory, and caps them if the server has a memory budget.
+ * Spools reserve memory in multiples of {@link #STEP} bytes, which are the capacities of their buffers, so sessions don't contend on the counter for every line of a mail.
+ */
+class SMTPMemoryBudget
+{
+	static final int STEP = 65536;
+	private final AtomicLong used = new AtomicLong(0);
+	/**
+	 * The number of bytes that can be reserved in total, or -1 for no limit.
+	 */
+	long limit = -1;
+
+	/**
+	 * Reserves the given number of bytes.
+	 *
+	 * @param bytes The number of bytes.
+	 * @return False if that would exceed the budget, in which case nothing has been reserved.
+	 */
+	boolean reserve(long bytes)
+	{
+		long current;
+		do
+		{
+			current = used.get();
+			if(limit >= 0 && current + bytes > limit)
+			{
+				return false;
+			}
+		}
+		while(!used.compareAndSet(current, current + bytes));
+		return true;
+	}
+
+	void release(long bytes)
+	{
+		used.addAndGet(-bytes);
+	}
+
+	/**
+	 * Returns whether less than a step is left, so a new mail couldn't be buffered.
+	 *
+	 * @return whether the budget is exhausted.
+	 */
+	boolean isExhausted()
+	{
+		return limit >= 0 && used.get() + STEP > limit;
+	}
+
+	long used()
+	{
+		return used.get();
+	}
+}
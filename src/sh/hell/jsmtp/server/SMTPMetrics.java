@@ -0,0 +1,268 @@
+package sh.hell.jsmtp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The runtime numbers of an SMTPServer, which are published as JMX MBeans while the server is online.
+ * Counters are LongAdders, so sessions never contend on them, and the latencies of commands and event handler callbacks are kept in lock-free histograms.
+ *
+ * @see SMTPServer#setJMXName(String)
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class SMTPMetrics implements SMTPMetricsMBean
+{
+	private static final Logger logger = LoggerFactory.getLogger(SMTPMetrics.class);
+	final LongAdder activeSessions = new LongAdder();
+	final LongAdder acceptedConnections = new LongAdder();
+	final LongAdder rejectedConnections = new LongAdder();
+	final LongAdder acceptedMessages = new LongAdder();
+	final LongAdder rejectedMessages = new LongAdder();
+	final LongAdder receivedBytes = new LongAdder();
+	final LongAdder flushes = new LongAdder();
+	final LongAdder tlsHandshakes = new LongAdder();
+	final LongAdder failedTLSHandshakes = new LongAdder();
+	final LongAdder droppedTraceEvents = new LongAdder();
+	final LongAdder rateLimited = new LongAdder();
+	private final ConcurrentHashMap<String, SMTPLatencyHistogram> commands = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, SMTPLatencyHistogram> callbacks = new ConcurrentHashMap<>();
+	final SMTPLatencyHistogram isIPAccepted = callback("isIPAccepted");
+	final SMTPLatencyHistogram isSenderAccepted = callback("isSenderAccepted");
+	final SMTPLatencyHistogram isRecipientAccepted = callback("isRecipientAccepted");
+	final SMTPLatencyHistogram onDataStart = callback("onDataStart");
+	final SMTPLatencyHistogram onData = callback("onData");
+	final SMTPLatencyHistogram onDataEnd = callback("onDataEnd");
+	final SMTPLatencyHistogram onMailComposed = callback("onMailComposed");
+	private final ArrayList<ObjectName> registered = new ArrayList<>();
+	private final SMTPMemoryBudget memoryBudget;
+
+	SMTPMetrics(SMTPMemoryBudget memoryBudget)
+	{
+		this.memoryBudget = memoryBudget;
+	}
+
+	private SMTPLatencyHistogram callback(String name)
+	{
+		final SMTPLatencyHistogram histogram = new SMTPLatencyHistogram();
+		callbacks.put(name, histogram);
+		return histogram;
+	}
+
+	/**
+	 * Returns the histogram of the given command, creating it if needed.
+	 *
+	 * @param verb The verb of the command.
+	 * @return The histogram.
+	 */
+	SMTPLatencyHistogram command(String verb)
+	{
+		return commands.computeIfAbsent(verb.toUpperCase(), v->new SMTPLatencyHistogram());
+	}
+
+	@Override
+	public long getActiveSessions()
+	{
+		return activeSessions.sum();
+	}
+
+	@Override
+	public long getAcceptedConnections()
+	{
+		return acceptedConnections.sum();
+	}
+
+	/**
+	 * Returns the number of connections that were closed without a session, because of admission control or {@link SMTPEventHandler#isIPAccepted(String)}.
+	 *
+	 * @return the number of connections that were closed without a session.
+	 */
+	@Override
+	public long getRejectedConnections()
+	{
+		return rejectedConnections.sum();
+	}
+
+	/**
+	 * Returns the number of mails that were answered with 250 after their last byte had been received.
+	 *
+	 * @return the number of accepted mails.
+	 */
+	@Override
+	public long getAcceptedMessages()
+	{
+		return acceptedMessages.sum();
+	}
+
+	/**
+	 * Returns the number of mails that were refused after their last byte had been received, e.g. because they were too big or delivery failed.
+	 *
+	 * @return the number of refused mails.
+	 */
+	@Override
+	public long getRejectedMessages()
+	{
+		return rejectedMessages.sum();
+	}
+
+	/**
+	 * Returns the number of bytes the sessions have reserved for buffering received mails in memory.
+	 *
+	 * @return the number of bytes reserved for mails in memory.
+	 * @see SMTPServer#setMemoryBudget(long)
+	 */
+	@Override
+	public long getBufferedBytes()
+	{
+		return memoryBudget.used();
+	}
+
+	/**
+	 * Returns the number of bytes received from clients, after decryption.
+	 *
+	 * @return the number of bytes received from clients.
+	 */
+	@Override
+	public long getReceivedBytes()
+	{
+		return receivedBytes.sum();
+	}
+
+	/**
+	 * Returns the number of times sessions have flushed replies to their clients. Pipelined commands are answered with a single flush, so this is usually lower than the number of commands.
+	 *
+	 * @return the number of flushes.
+	 */
+	@Override
+	public long getFlushes()
+	{
+		return flushes.sum();
+	}
+
+	@Override
+	public long getTLSHandshakes()
+	{
+		return tlsHandshakes.sum();
+	}
+
+	@Override
+	public long getFailedTLSHandshakes()
+	{
+		return failedTLSHandshakes.sum();
+	}
+
+	/**
+	 * Returns the number of events that couldn't be buffered for the trace listener because it fell behind.
+	 *
+	 * @return the number of dropped trace events.
+	 * @see SMTPServer#setTraceBufferSize(int)
+	 */
+	@Override
+	public long getDroppedTraceEvents()
+	{
+		return droppedTraceEvents.sum();
+	}
+
+	/**
+	 * Returns the number of connections, MAIL and RCPT commands that have been refused because of a rate limit.
+	 *
+	 * @return the number of rate-limited connections and commands.
+	 * @see SMTPServer#setConnectionRateLimit(int, long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public long getRateLimited()
+	{
+		return rateLimited.sum();
+	}
+
+	/**
+	 * Returns the latencies of commands by verb. For a command, it's the time from receiving it until its final reply has been queued, and for DATA and BDAT, from receiving the end of the mail or chunk.
+	 *
+	 * @return The histograms by verb.
+	 */
+	public Map<String, SMTPLatencyHistogram> getCommandLatencies()
+	{
+		return Collections.unmodifiableMap(new TreeMap<>(commands));
+	}
+
+	/**
+	 * Returns the latencies of event handler callbacks by method name, without "Async". For asynchronous callbacks, it's the time until their result completed or timed out.
+	 *
+	 * @return The histograms by method name.
+	 */
+	public Map<String, SMTPLatencyHistogram> getCallbackLatencies()
+	{
+		return Collections.unmodifiableMap(new TreeMap<>(callbacks));
+	}
+
+	/**
+	 * Publishes the metrics on the platform MBeanServer, along with a histogram per command and callback with an additional "command" or "callback" key.
+	 * Failures are only logged, as the server works just the same without them.
+	 *
+	 * @param name The ObjectName of the metrics, e.g. "sh.hell.jsmtp:type=SMTPServer,name=25".
+	 */
+	synchronized void register(String name)
+	{
+		final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			register(mBeanServer, new ObjectName(name), this);
+			for(Map.Entry<String, SMTPLatencyHistogram> entry : getCommandLatencies().entrySet())
+			{
+				register(mBeanServer, new ObjectName(name + ",command=" + quoteIfNeeded(entry.getKey())), entry.getValue());
+			}
+			for(Map.Entry<String, SMTPLatencyHistogram> entry : getCallbackLatencies().entrySet())
+			{
+				register(mBeanServer, new ObjectName(name + ",callback=" + entry.getKey()), entry.getValue());
+			}
+		}
+		catch(JMException e)
+		{
+			logger.warn("Failed to publish metrics as " + name + ": " + e);
+		}
+	}
+
+	private static String quoteIfNeeded(String value)
+	{
+		for(char c : ",=:\"*?".toCharArray())
+		{
+			if(value.indexOf(c) != -1)
+			{
+				return ObjectName.quote(value);
+			}
+		}
+		return value;
+	}
+
+	private void register(MBeanServer mBeanServer, ObjectName name, Object mBean) throws JMException
+	{
+		mBeanServer.registerMBean(mBean, name);
+		registered.add(name);
+	}
+
+	synchronized void unregister()
+	{
+		final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		for(ObjectName name : registered)
+		{
+			try
+			{
+				mBeanServer.unregisterMBean(name);
+			}
+			catch(JMException ignored)
+			{
+			}
+		}
+		registered.clear();
+	}
+}
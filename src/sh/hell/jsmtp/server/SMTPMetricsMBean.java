@@ -0,0 +1,32 @@
+package sh.hell.jsmtp.server;
+
+/**
+ * The JMX view of an {@link SMTPMetrics}.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public interface SMTPMetricsMBean
+{
+	long getActiveSessions();
+
+	long getAcceptedConnections();
+
+	long getRejectedConnections();
+
+	long getAcceptedMessages();
+
+	long getRejectedMessages();
+
+	long getBufferedBytes();
+
+	long getReceivedBytes();
+
+	long getFlushes();
+
+	long getTLSHandshakes();
+
+	long getFailedTLSHandshakes();
+
+	long getDroppedTraceEvents();
+
+	long getRateLimited();
+}
@@ -0,0 +1,110 @@
+package sh.hell.jsmtp.server;
+
+import java.util.HashMap;
+
+/**
+ * The path and ESMTP parameters of a MAIL FROM or RCPT TO command, parsed in a single pass.
+ */
+class SMTPPathArguments
+{
+	/**
+	 * The path between the angle brackets.
+	 */
+	final String path;
+	/**
+	 * The ESMTP parameters with uppercased keywords. Keywords without a value map to null.
+	 */
+	final HashMap<String, String> parameters = new HashMap<>();
+	/**
+	 * The value of the SIZE parameter, or -1 if it is absent or invalid.
+	 */
+	long size = -1;
+
+	private SMTPPathArguments(String path)
+	{
+		this.path = path;
+	}
+
+	/**
+	 * Parses the argument of a MAIL or RCPT command.
+	 *
+	 * @param argument The argument, e.g. "FROM:&lt;sender@example.com&gt; SIZE=1337".
+	 * @param prefix   The prefix the argument has to start with, e.g. "FROM:".
+	 * @return The parsed arguments, or null if the argument doesn't start with the prefix followed by a path.
+	 */
+	static SMTPPathArguments parse(String argument, String prefix)
+	{
+		final int length = argument.length();
+		if(!argument.regionMatches(true, 0, prefix, 0, prefix.length()))
+		{
+			return null;
+		}
+		int i = prefix.length();
+		while(i < length && argument.charAt(i) == ' ')
+		{
+			i++;
+		}
+		if(i == length || argument.charAt(i) != '<')
+		{
+			return null;
+		}
+		final int pathEnd = argument.indexOf('>', i);
+		if(pathEnd == -1)
+		{
+			return null;
+		}
+		final SMTPPathArguments arguments = new SMTPPathArguments(argument.substring(i + 1, pathEnd));
+		i = pathEnd + 1;
+		while(i < length)
+		{
+			if(argument.charAt(i) == ' ')
+			{
+				i++;
+				continue;
+			}
+			final int start = i;
+			int equals = -1;
+			while(i < length && argument.charAt(i) != ' ')
+			{
+				if(equals == -1 && argument.charAt(i) == '=')
+				{
+					equals = i;
+				}
+				i++;
+			}
+			final String keyword = argument.substring(start, equals == -1 ? i : equals).toUpperCase();
+			final String value = (equals == -1 ? null : argument.substring(equals + 1, i));
+			arguments.parameters.put(keyword, value);
+			if(value != null && keyword.equals("SIZE"))
+			{
+				arguments.size = parseNumber(value);
+			}
+		}
+		return arguments;
+	}
+
+	/**
+	 * Parses a non-negative decimal number.
+	 *
+	 * @param value The number.
+	 * @return The number, or -1 if it is invalid.
+	 */
+	static long parseNumber(String value)
+	{
+		if(value.length() == 0 || value.length() > 18)
+		{
+			return -1;
+		}
+		long size = 0;
+		for(int i = 0; i < value.length(); i++)
+		{
+			final char c = value.charAt(i);
+			if(c < '0' || c > '9')
+			{
+				return -1;
+			}
+			size = size * 10 + (c - '0');
+		}
+		return size;
+	}
+}
@@ -0,0 +1,216 @@
+package sh.hell.jsmtp.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the header a load balancer sends in front of a connection using version 1 or 2 of the PROXY protocol, which names the actual client.
+ *
+ * @see <a href="https://www.haproxy.org/download/2.8/doc/proxy-protocol.txt">The PROXY protocol</a>
+ */
+class SMTPProxyHeader
+{
+	private static final byte[] V2_SIGNATURE = new byte[]{'\r', '\n', '\r', '\n', 0, '\r', '\n', 'Q', 'U', 'I', 'T', '\n'};
+	private static final int V1_MAX_LENGTH = 105;
+	/**
+	 * The address of the client, or null if the header doesn't name one, e.g. because the load balancer is checking on the server.
+	 */
+	InetSocketAddress source;
+
+	/**
+	 * Reads the header from the given decoder, leaving whatever follows it buffered.
+	 *
+	 * @param decoder The decoder.
+	 * @return False if the header is incomplete.
+	 * @throws ProtocolException If the header is invalid.
+	 */
+	boolean read(SMTPLineDecoder decoder) throws ProtocolException
+	{
+		final int available = decoder.available();
+		if(available == 0)
+		{
+			return false;
+		}
+		if(decoder.peek(0) == 'P')
+		{
+			if(!decoder.next())
+			{
+				return false;
+			}
+			if(decoder.lineTooLong || decoder.bareLF || decoder.lineLength > V1_MAX_LENGTH)
+			{
+				throw new ProtocolException("Invalid version 1 header");
+			}
+			parseV1(new String(decoder.array(), decoder.lineOffset, decoder.lineLength, StandardCharsets.US_ASCII));
+			return true;
+		}
+		for(int i = 0; i < Math.min(available, V2_SIGNATURE.length); i++)
+		{
+			if(decoder.peek(i) != V2_SIGNATURE[i])
+			{
+				throw new ProtocolException("Missing header");
+			}
+		}
+		if(available < 16)
+		{
+			return false;
+		}
+		final int length = ((decoder.peek(14) & 0xFF) << 8) | (decoder.peek(15) & 0xFF);
+		if(available < 16 + length)
+		{
+			return false;
+		}
+		decoder.nextBytes(16 + length);
+		parseV2(decoder.array(), decoder.lineOffset, length);
+		return true;
+	}
+
+	private void parseV1(String line) throws ProtocolException
+	{
+		final String[] parts = line.split(" ", -1);
+		if(parts.length < 2 || !parts[0].equals("PROXY"))
+		{
+			throw new ProtocolException("Invalid version 1 header");
+		}
+		if(parts[1].equals("UNKNOWN"))
+		{
+			return;
+		}
+		if(parts.length != 6 || (!parts[1].equals("TCP4") && !parts[1].equals("TCP6")))
+		{
+			throw new ProtocolException("Invalid version 1 header");
+		}
+		final boolean ipv4 = parts[1].equals("TCP4");
+		final InetAddress address = (ipv4 ? parseIPv4(parts[2], "source") : parseIPv6(parts[2], "source"));
+		// The destination isn't used, but a header with an invalid one is as broken as one with an invalid source.
+		if(ipv4)
+		{
+			parseIPv4(parts[3], "destination");
+		}
+		else
+		{
+			parseIPv6(parts[3], "destination");
+		}
+		final int port = parsePort(parts[4], "source");
+		parsePort(parts[5], "destination");
+		source = new InetSocketAddress(address, port);
+	}
+
+	private static int parsePort(String text, String role) throws ProtocolException
+	{
+		// Integer.parseInt would also accept signs.
+		if(text.isEmpty() || text.length() > 5)
+		{
+			throw new ProtocolException("Invalid " + role + " port");
+		}
+		int port = 0;
+		for(char c : text.toCharArray())
+		{
+			if(c < '0' || c > '9')
+			{
+				throw new ProtocolException("Invalid " + role + " port");
+			}
+			port = port * 10 + (c - '0');
+		}
+		if(port > 65535)
+		{
+			throw new ProtocolException("Invalid " + role + " port");
+		}
+		return port;
+	}
+
+	private static InetAddress parseIPv4(String text, String role) throws ProtocolException
+	{
+		// Parsed by hand, because InetAddress.getByName would look up anything that isn't an address.
+		final String[] parts = text.split("\\.", -1);
+		if(parts.length != 4)
+		{
+			throw new ProtocolException("Invalid " + role + " address");
+		}
+		final byte[] bytes = new byte[4];
+		for(int i = 0; i < 4; i++)
+		{
+			int value = 0;
+			if(parts[i].isEmpty() || parts[i].length() > 3)
+			{
+				throw new ProtocolException("Invalid " + role + " address");
+			}
+			for(char c : parts[i].toCharArray())
+			{
+				if(c < '0' || c > '9')
+				{
+					throw new ProtocolException("Invalid " + role + " address");
+				}
+				value = value * 10 + (c - '0');
+			}
+			if(value > 255)
+			{
+				throw new ProtocolException("Invalid " + role + " address");
+			}
+			bytes[i] = (byte) value;
+		}
+		return getByAddress(bytes);
+	}
+
+	private static InetAddress parseIPv6(String text, String role) throws ProtocolException
+	{
+		// Strings containing a colon are always parsed as IPv6 literals, without a lookup. Scoped and bracketed literals aren't valid in a header.
+		if(text.indexOf(':') == -1 || text.indexOf('%') != -1 || text.indexOf('[') != -1)
+		{
+			throw new ProtocolException("Invalid " + role + " address");
+		}
+		try
+		{
+			return InetAddress.getByName(text);
+		}
+		catch(UnknownHostException ignored)
+		{
+			throw new ProtocolException("Invalid " + role + " address");
+		}
+	}
+
+	private void parseV2(byte[] header, int offset, int length) throws ProtocolException
+	{
+		final int version = (header[offset + 12] & 0xF0) >> 4;
+		final int command = header[offset + 12] & 0x0F;
+		if(version != 2 || command > 1)
+		{
+			throw new ProtocolException("Invalid version 2 header");
+		}
+		if(command == 0)
+		{
+			// LOCAL: the connection was made by the load balancer itself.
+			return;
+		}
+		final int family = (header[offset + 13] & 0xF0) >> 4;
+		final int addressLength = (family == 1 ? 4 : family == 2 ? 16 : 0);
+		if(addressLength == 0)
+		{
+			// UNSPEC or UNIX: there is no IP address to expose.
+			return;
+		}
+		if(length < addressLength * 2 + 4)
+		{
+			throw new ProtocolException("Invalid version 2 header");
+		}
+		final byte[] bytes = new byte[addressLength];
+		System.arraycopy(header, offset + 16, bytes, 0, addressLength);
+		final int portOffset = offset + 16 + addressLength * 2;
+		source = new InetSocketAddress(getByAddress(bytes), ((header[portOffset] & 0xFF) << 8) | (header[portOffset + 1] & 0xFF));
+	}
+
+	private static InetAddress getByAddress(byte[] bytes) throws ProtocolException
+	{
+		try
+		{
+			return InetAddress.getByAddress(bytes);
+		}
+		catch(UnknownHostException ignored)
+		{
+			throw new ProtocolException("Invalid source address");
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package sh.hell.jsmtp.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often something may happen per client address and per sender domain, using a token bucket per address and per domain.
+ * Like {@link SMTPAdmission}'s accept rate, each bucket is a single AtomicLong holding the theoretical arrival time of the generic cell rate algorithm, so taking a token is one CAS.
+ * Addresses and domains are kept in separate maps of at most {@link #maxKeys} buckets each, so senders making up domains can't crowd out the buckets of clients. A bucket whose arrival time has passed is indistinguishable from a new one, so once a map is full, idle buckets are swept, at most once per {@link #SWEEP_INTERVAL}. If none are idle, new addresses or domains are refused until some are.
+ */
+class SMTPRateLimiter
+{
+	static final int MAX_KEYS = 100000;
+	private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	/**
+	 * The number of nanoseconds it takes for a token to be added to a bucket.
+	 */
+	private final long interval;
+	/**
+	 * How far ahead of the current time the arrival time may be, which is how many tokens a bucket holds when full.
+	 */
+	private final long tolerance;
+	private final Buckets clients = new Buckets();
+	private final Buckets domains = new Buckets();
+	/**
+	 * The number of buckets each map holds at most.
+	 */
+	int maxKeys = MAX_KEYS;
+
+	/**
+	 * @param permits The number of tokens per period, which is also the number of tokens that can be taken at once.
+	 * @param period  The period in nanoseconds.
+	 */
+	SMTPRateLimiter(int permits, long period)
+	{
+		this.interval = Math.max(1, period / permits);
+		this.tolerance = interval * permits;
+	}
+
+	/**
+	 * Takes a token from the bucket of the given client.
+	 *
+	 * @param client The address of the client.
+	 * @return False if the bucket is empty or there's no room for it.
+	 */
+	boolean acquire(InetAddress client)
+	{
+		return clients.acquire(client) != null;
+	}
+
+	/**
+	 * Takes a token from the bucket of the given client and one from the bucket of the given sender domain, or neither.
+	 *
+	 * @param client The address of the client.
+	 * @param domain The sender domain in lower case.
+	 * @return False if either bucket is empty or there's no room for it.
+	 */
+	boolean acquire(InetAddress client, String domain)
+	{
+		final AtomicLong clientBucket = clients.acquire(client);
+		if(clientBucket == null)
+		{
+			return false;
+		}
+		if(domains.acquire(domain) == null)
+		{
+			// Returns the client's token, so it isn't charged for what its sender domain has been refused.
+			clientBucket.addAndGet(-interval);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether {@link #acquire(InetAddress, String)} would fail right now, without taking any tokens.
+	 *
+	 * @param client The address of the client.
+	 * @param domain The sender domain in lower case.
+	 * @return True if either bucket is empty or there's no room for it.
+	 */
+	boolean isLimited(InetAddress client, String domain)
+	{
+		return clients.isLimited(client) || domains.isLimited(domain);
+	}
+
+	private class Buckets
+	{
+		private final ConcurrentHashMap<Object, AtomicLong> buckets = new ConcurrentHashMap<>();
+		private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+
+		/**
+		 * Takes a token from the bucket of the given key.
+		 *
+		 * @param key The key.
+		 * @return The bucket, or null if it is empty or there's no room for it.
+		 */
+		AtomicLong acquire(Object key)
+		{
+			AtomicLong bucket = buckets.get(key);
+			if(bucket == null)
+			{
+				if(buckets.size() >= maxKeys && !sweep())
+				{
+					return null;
+				}
+				bucket = buckets.computeIfAbsent(key, k->new AtomicLong(System.nanoTime()));
+			}
+			while(true)
+			{
+				final long now = System.nanoTime();
+				final long arrival = bucket.get();
+				final long updated = Math.max(arrival, now) + interval;
+				if(updated - now > tolerance)
+				{
+					return null;
+				}
+				if(bucket.compareAndSet(arrival, updated))
+				{
+					return bucket;
+				}
+			}
+		}
+
+		boolean isLimited(Object key)
+		{
+			final AtomicLong bucket = buckets.get(key);
+			if(bucket == null)
+			{
+				return buckets.size() >= maxKeys && !sweep();
+			}
+			final long now = System.nanoTime();
+			return Math.max(bucket.get(), now) + interval - now > tolerance;
+		}
+
+		/**
+		 * Removes the buckets that are full again, unless that has already been done within the last {@link SMTPRateLimiter#SWEEP_INTERVAL}.
+		 *
+		 * @return False if there is still no room for another key.
+		 */
+		private boolean sweep()
+		{
+			final long now = System.nanoTime();
+			final long next = nextSweep.get();
+			if(now - next >= 0 && nextSweep.compareAndSet(next, now + SWEEP_INTERVAL))
+			{
+				buckets.values().removeIf(bucket->bucket.get() - now <= 0);
+			}
+			return buckets.size() < maxKeys;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package sh.hell.jsmtp.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Waits for readiness of the channels of many SMTPChannelSessions and hands ready sessions over to the server's workers.
+ * Interest ops are only ever changed on this thread, because SelectionKey.interestOps blocks during select on older JVMs.
+ */
+class SMTPSelector extends Thread
+{
+	final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	SMTPSelector(int id) throws IOException
+	{
+		super("SMTPSelector #" + id);
+		this.selector = Selector.open();
+		this.setDaemon(true);
+		this.start();
+	}
+
+	/**
+	 * Runs the given task on this selector's thread.
+	 *
+	 * @param task The task.
+	 */
+	void execute(Runnable task)
+	{
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			while(selector.isOpen())
+			{
+				selector.select();
+				Runnable task;
+				while((task = tasks.poll()) != null)
+				{
+					try
+					{
+						task.run();
+					}
+					catch(CancelledKeyException ignored)
+					{
+					}
+				}
+				for(SelectionKey key : selector.selectedKeys())
+				{
+					try
+					{
+						key.interestOps(0);
+						((SMTPChannelSession) key.attachment()).dispatch();
+					}
+					catch(CancelledKeyException ignored)
+					{
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		}
+		catch(IOException | ClosedSelectorException ignored)
+		{
+		}
+	}
+
+	void close()
+	{
+		try
+		{
+			selector.close();
+		}
+		catch(IOException ignored)
+		{
+		}
+	}
+}
@@ -9,23 +9,106 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 @SuppressWarnings({"WeakerAccess", "UnusedReturnValue", "unused"})
 public class SMTPServer
 {
 	private static final Logger logger = LoggerFactory.getLogger(SMTPServer.class);
 	public final SSLSocketFactory sslSocketFactory;
+	/**
+	 * The SSLContext non-blocking sessions create their SSLEngines with. If null, non-blocking sessions don't offer STARTTLS.
+	 */
+	public final SSLContext sslContext;
 	public final ArrayList<SMTPListener> listeners = new ArrayList<>();
-	public final ArrayList<SMTPSession> sessions = new ArrayList<>();
+	/**
+	 * The sessions of the server. Adding and removing sessions is O(1) and lock-free, so the listeners never wait for ending sessions.
+	 */
+	final Set<SMTPSession> sessions = ConcurrentHashMap.newKeySet();
 	final SMTPEventHandler eventHandler;
+	/**
+	 * The bytes of received mails all sessions hold in memory.
+	 */
+	final SMTPMemoryBudget memoryBudget = new SMTPMemoryBudget();
+	/**
+	 * The runtime numbers of the server, which are also published via JMX.
+	 */
+	public final SMTPMetrics metrics = new SMTPMetrics(memoryBudget);
+	final SMTPCommandTable commands = SMTPSession.createCommandTable(metrics);
+	final SMTPAdmission admission = new SMTPAdmission();
+	/**
+	 * The rate limits per client address, and for messages and recipients also per sender domain, or null.
+	 */
+	SMTPRateLimiter connectionRateLimiter;
+	SMTPRateLimiter messageRateLimiter;
+	SMTPRateLimiter recipientRateLimiter;
+	int maxRecipients = -1;
+	int rateLimitKeys = SMTPRateLimiter.MAX_KEYS;
 	public int[] ports = new int[]{25, 587};
+	/**
+	 * How each of the {@link #ports} uses TLS.
+	 */
+	public SMTPTLSMode[] tlsModes = new SMTPTLSMode[]{SMTPTLSMode.STARTTLS, SMTPTLSMode.STARTTLS};
+	/**
+	 * The TLS configuration of the sessions, computed from the SSLContext or SSLSocketFactory when the server starts unless it has been set.
+	 */
+	SMTPTLSProfile tlsProfile;
+	int[] proxyProtocolPorts = new int[0];
+	InetAddress bindAddress;
+	int backlog = 0;
+	int acceptorThreads = 1;
+	String jmxName;
+	SMTPTraceListener traceListener;
+	int traceBufferSize = 65536;
+	/**
+	 * Delivers the events of the sessions to the {@link #traceListener} while the server is online, or null.
+	 */
+	volatile SMTPTracer tracer;
+	Predicate<SMTPSession> wireTraceFilter;
+	int wireTraceSize = 65536;
+	int maxLineLength = 4096;
+	long spoolThreshold = -1;
+	File spoolDirectory;
+	long hookTimeout = 0;
+	long greetingTimeout = TimeUnit.MINUTES.toMillis(5);
+	long commandTimeout = TimeUnit.MINUTES.toMillis(5);
+	long dataTimeout = TimeUnit.MINUTES.toMillis(3);
+	long sessionTimeout = 0;
+	Executor sessionExecutor = runnable->new Thread(runnable, "SMTPSession").start();
+	int selectorThreads = 0;
+	int workerThreads = Runtime.getRuntime().availableProcessors() * 4;
+	SMTPSelector[] selectors;
+	ExecutorService workers;
+	/**
+	 * The timer enforcing the timeouts of all sessions, created when the server starts.
+	 */
+	SMTPTimer timer;
+	/**
+	 * True while {@link #stop(Duration)} waits for sessions to finish their mail transactions.
+	 */
+	volatile boolean draining = false;
+	private final Object drainLock = new Object();
+	private int nextSelector = 0;
 
 	public SMTPServer(SMTPEventHandler eventHandler)
 	{
@@ -36,6 +119,14 @@ public class SMTPServer
 	{
 		this.eventHandler = eventHandler;
 		this.sslSocketFactory = sslSocketFactory;
+		this.sslContext = null;
+	}
+
+	public SMTPServer(SMTPEventHandler eventHandler, SSLContext sslContext)
+	{
+		this.eventHandler = eventHandler;
+		this.sslSocketFactory = sslContext.getSocketFactory();
+		this.sslContext = sslContext;
 	}
 
 	public SMTPServer(SMTPEventHandler eventHandler, String keyStoreFile, String keyStorePassword) throws IOException, GeneralSecurityException
@@ -66,6 +157,25 @@ public class SMTPServer
 		sslContext.init(kmf.getKeyManagers(), trustAllCerts, new SecureRandom());
 		this.eventHandler = eventHandler;
 		this.sslSocketFactory = sslContext.getSocketFactory();
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Returns whether this JVM supports virtual threads, which are available as of Java 21.
+	 *
+	 * @return whether this JVM supports virtual threads.
+	 */
+	public static boolean areVirtualThreadsSupported()
+	{
+		try
+		{
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch(NoSuchMethodException ignored)
+		{
+			return false;
+		}
 	}
 
 	public boolean isOnline()
@@ -73,75 +183,994 @@ public class SMTPServer
 		return listeners.size() > 0;
 	}
 
+	/**
+	 * Sets the ports to listen on, all of which offer STARTTLS.
+	 *
+	 * @param ports The ports.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
 	public SMTPServer setPorts(int... ports) throws InvalidStateException
+	{
+		return this.setPorts(SMTPTLSMode.STARTTLS, ports);
+	}
+
+	/**
+	 * Sets the ports to listen on, all of which use TLS in the given way.
+	 *
+	 * @param tlsMode How the ports use TLS.
+	 * @param ports   The ports.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setPorts(SMTPTLSMode tlsMode, int... ports) throws InvalidStateException
 	{
 		if(isOnline())
 		{
 			throw new InvalidStateException("Ports can only be set when the server is offline.");
 		}
 		this.ports = ports;
+		this.tlsModes = new SMTPTLSMode[ports.length];
+		Arrays.fill(this.tlsModes, tlsMode);
 		return this;
 	}
 
-	public SMTPServer start() throws InvalidStateException, IOException
+	/**
+	 * Adds a port to listen on, e.g. 465 with implicit TLS next to 25 and 587 with STARTTLS.
+	 *
+	 * @param port    The port.
+	 * @param tlsMode How the port uses TLS.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer addPort(int port, SMTPTLSMode tlsMode) throws InvalidStateException
 	{
 		if(isOnline())
 		{
-			throw new InvalidStateException("The server is already online.");
+			throw new InvalidStateException("Ports can only be set when the server is offline.");
 		}
-		if(ports.length == 0)
+		this.ports = Arrays.copyOf(ports, ports.length + 1);
+		this.ports[ports.length - 1] = port;
+		this.tlsModes = Arrays.copyOf(tlsModes, tlsModes.length + 1);
+		this.tlsModes[tlsModes.length - 1] = tlsMode;
+		return this;
+	}
+
+	/**
+	 * Lets the listeners on the given ports expect every connection to start with a PROXY protocol header, version 1 or 2, as sent by load balancers like HAProxy.
+	 * Connections without a valid header are closed. The client named by the header is what admission limits, {@link SMTPEventHandler#isIPAccepted(String)} and {@link SMTPSession#getClientAddress()} see.
+	 * Only use this for ports that can't be reached without going through the load balancer.
+	 *
+	 * @param proxyProtocolPorts The ports, as given to {@link #setPorts(int...)}.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setProxyProtocolPorts(int... proxyProtocolPorts) throws InvalidStateException
+	{
+		if(isOnline())
 		{
-			throw new InvalidStateException("Can't start a server with no ports to listen on.");
+			throw new InvalidStateException("Ports can only be set when the server is offline.");
 		}
-		synchronized(listeners)
+		this.proxyProtocolPorts = proxyProtocolPorts;
+		return this;
+	}
+
+	/**
+	 * Sets the JMX ObjectName the {@link #metrics} are published as while the server is online. Defaults to "sh.hell.jsmtp:type=SMTPServer,name=" followed by the port of the first listener.
+	 *
+	 * @param jmxName The ObjectName, e.g. "com.example:type=SMTPServer,name=inbound".
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setJMXName(String jmxName) throws InvalidStateException
+	{
+		if(isOnline())
 		{
-			for(int port : ports)
-			{
-				logger.info("Binding to *:" + port + "...");
-				listeners.add(new SMTPListener(this, port));
-			}
+			throw new InvalidStateException("The JMX name can only be changed when the server is offline.");
 		}
-		logger.info("SMTP Server started.");
+		this.jmxName = jmxName;
 		return this;
 	}
 
 	/**
-	 * Stops listening for new connections on the SMTPServer. Optionally, disconnects all clients.
+	 * Sets the listener that is told about the phases of every session, e.g. to find out where slow transactions spend their time.
 	 *
-	 * @param closeSessions Set to true to not only stop listening but also to disconnect all clients.
+	 * @param traceListener The listener, or null to not trace sessions, which is the default.
 	 * @return this
+	 * @throws InvalidStateException If the server is online.
 	 */
-	public SMTPServer stop(boolean closeSessions)
+	public SMTPServer setTraceListener(SMTPTraceListener traceListener) throws InvalidStateException
 	{
 		if(isOnline())
 		{
-			logger.info("Interrupting listeners...");
-			synchronized(listeners)
-			{
-				for(SMTPListener listener : listeners)
-				{
-					try
-					{
-						listener.socket.close();
-					}
-					catch(IOException ignored)
-					{
-					}
-				}
-				listeners.clear();
-			}
+			throw new InvalidStateException("The trace listener can only be changed when the server is offline.");
 		}
-		if(closeSessions)
+		this.traceListener = traceListener;
+		return this;
+	}
+
+	/**
+	 * Sets the number of events that can wait for the trace listener before further events are dropped. Defaults to 65536.
+	 *
+	 * @param traceBufferSize The number of events, which is rounded up to a power of two.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setTraceBufferSize(int traceBufferSize) throws InvalidStateException
+	{
+		if(isOnline())
 		{
-			logger.info("Closing sessions...");
-			synchronized(sessions)
-			{
-				for(SMTPSession session : sessions)
-				{
-					session.close();
-				}
-				sessions.clear();
+			throw new InvalidStateException("The trace buffer size can only be changed when the server is offline.");
+		}
+		if(traceBufferSize < 1)
+		{
+			throw new IllegalArgumentException("The trace buffer size has to be positive.");
+		}
+		this.traceBufferSize = traceBufferSize;
+		return this;
+	}
+
+	/**
+	 * Sets which sessions record the bytes they exchange with their client, e.g. {@code session->((InetSocketAddress) session.getClientAddress()).getAddress().equals(suspect)}.
+	 * The filter is applied once a session knows its client, before it is greeted. Sessions that aren't selected only check whether they are being traced, so tracing costs nothing for them.
+	 *
+	 * @param wireTraceFilter The filter, or null to not trace any sessions, which is the default.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 * @see SMTPSession#getWireTrace()
+	 */
+	public SMTPServer setWireTraceFilter(Predicate<SMTPSession> wireTraceFilter) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The wire trace filter can only be changed when the server is offline.");
+		}
+		this.wireTraceFilter = wireTraceFilter;
+		return this;
+	}
+
+	/**
+	 * Sets the number of most recent bytes the sessions selected by the wire trace filter keep. Defaults to 65536.
+	 *
+	 * @param wireTraceSize The number of bytes.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setWireTraceSize(int wireTraceSize) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The wire trace size can only be changed when the server is offline.");
+		}
+		if(wireTraceSize < 1)
+		{
+			throw new IllegalArgumentException("The wire trace size has to be positive.");
+		}
+		this.wireTraceSize = wireTraceSize;
+		return this;
+	}
+
+	/**
+	 * Sets the TLS configuration of the sessions, e.g. {@code SMTPTLSProfile.of(sslContext, true).setSessionCacheSize(10000)}.
+	 * By default, the server uses {@link SMTPTLSProfile#of(SSLContext, boolean)} without restricting clients to AEAD cipher suites.
+	 *
+	 * @param tlsProfile The profile.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setTLSProfile(SMTPTLSProfile tlsProfile) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The TLS profile can only be changed when the server is offline.");
+		}
+		this.tlsProfile = tlsProfile;
+		return this;
+	}
+
+	/**
+	 * Sets the local address the server listens on. By default, the server listens on all addresses.
+	 *
+	 * @param bindAddress The address or null.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setBindAddress(InetAddress bindAddress) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The bind address can only be changed when the server is offline.");
+		}
+		this.bindAddress = bindAddress;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of connections the operating system queues for every port before they are accepted.
+	 * Use 0 for the default of the JVM, which is the default.
+	 *
+	 * @param backlog The backlog or 0.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setBacklog(int backlog) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The backlog can only be changed when the server is offline.");
+		}
+		this.backlog = backlog;
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads accepting connections on every port, which also run {@link SMTPEventHandler#isIPAccepted(String)}.
+	 * Where SO_REUSEPORT is supported, every acceptor gets a socket of its own and the operating system spreads new connections over them; otherwise, the acceptors share one socket. The default is 1.
+	 *
+	 * @param acceptorThreads The number of acceptor threads per port.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setAcceptorThreads(int acceptorThreads) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The threading model can only be changed when the server is offline.");
+		}
+		this.acceptorThreads = acceptorThreads;
+		return this;
+	}
+
+	/**
+	 * Registers a command, replacing the built-in command with the same verb, if any.
+	 *
+	 * @param verb    The verb of the command, consisting of 1 to 8 printable ASCII characters. Case doesn't matter.
+	 * @param command The command.
+	 * @return this
+	 * @throws InvalidStateException    If the server is online.
+	 * @throws IllegalArgumentException If the verb is invalid.
+	 */
+	public SMTPServer registerCommand(String verb, SMTPCommand command) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Commands can only be registered when the server is offline.");
+		}
+		commands.put(verb, command);
+		return this;
+	}
+
+	/**
+	 * Sets the maximum length of a line sent by a client, without its CRLF.
+	 * RFC 5321 only requires servers to accept lines of up to 1000 bytes, but the default of 4096 also tolerates sloppy senders.
+	 * Longer command lines are answered with 500, and mails containing longer lines are refused.
+	 *
+	 * @param maxLineLength The maximum number of bytes in a line.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setMaxLineLength(int maxLineLength) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The maximum line length can only be changed when the server is offline.");
+		}
+		this.maxLineLength = maxLineLength;
+		return this;
+	}
+
+	/**
+	 * Enables spooling of received mails to disk: mails are kept in memory up to the given number of bytes and moved to a temporary spool file when they get bigger.
+	 * The SMTPMail of a spooled mail has a memory-mapped {@link sh.hell.jsmtp.content.SMTPMail#rawMessage}, so its size doesn't count towards the heap unless its contents are asked for.
+	 * Use -1 to never spool, which is the default.
+	 *
+	 * @param spoolThreshold The number of bytes to keep in memory or -1.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setSpoolThreshold(long spoolThreshold) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The spool threshold can only be changed when the server is offline.");
+		}
+		this.spoolThreshold = spoolThreshold;
+		return this;
+	}
+
+	/**
+	 * Caps the number of bytes of received mails all sessions together keep in memory, so bursts of big mails can't exhaust the heap.
+	 * Once the budget is used up, mails are spooled to disk if spooling is enabled. Otherwise, new transactions and mails are answered with 452 and mails that don't fit anymore are refused with 452 once they have been received.
+	 * The budget counts the capacity of the buffers mails are kept in, which grows in steps of 64 KiB and at most doubles at a time. While a buffer grows, its old contents are briefly held a second time.
+	 * Mails streamed to the event handler don't count towards the budget. Use -1 for no budget, which is the default.
+	 *
+	 * @param memoryBudget The number of bytes or -1.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 * @see #setSpoolThreshold(long)
+	 */
+	public SMTPServer setMemoryBudget(long memoryBudget) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The memory budget can only be changed when the server is offline.");
+		}
+		this.memoryBudget.limit = memoryBudget;
+		return this;
+	}
+
+	/**
+	 * Sets the directory spool files are created in. By default, the system's temporary-file directory is used.
+	 *
+	 * @param spoolDirectory The directory or null.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setSpoolDirectory(File spoolDirectory) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The spool directory can only be changed when the server is offline.");
+		}
+		this.spoolDirectory = spoolDirectory;
+		return this;
+	}
+
+	/**
+	 * Limits the number of concurrent sessions. Connections over the limit are answered with 421 and closed right away.
+	 *
+	 * @param maxSessions The maximum number of sessions or -1 for no limit, which is the default.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setMaxSessions(int maxSessions) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Admission limits can only be changed when the server is offline.");
+		}
+		admission.maxSessions = maxSessions;
+		return this;
+	}
+
+	/**
+	 * Limits the number of concurrent sessions per client IP address. Connections over the limit are answered with 421 and closed right away.
+	 *
+	 * @param maxClientSessions The maximum number of sessions per client or -1 for no limit, which is the default.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setMaxSessionsPerClient(int maxClientSessions) throws InvalidStateException
+	{
+		return this.setMaxSessionsPerClient(maxClientSessions, 32, 128);
+	}
+
+	/**
+	 * Limits the number of concurrent sessions per client network, e.g. per /24 IPv4 or /64 IPv6 prefix, so a sender can't get around the limit by spreading its connections over its addresses.
+	 *
+	 * @param maxClientSessions The maximum number of sessions per client network or -1 for no limit, which is the default.
+	 * @param ipv4PrefixLength  The length of the prefix that makes up an IPv4 client network.
+	 * @param ipv6PrefixLength  The length of the prefix that makes up an IPv6 client network.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setMaxSessionsPerClient(int maxClientSessions, int ipv4PrefixLength, int ipv6PrefixLength) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Admission limits can only be changed when the server is offline.");
+		}
+		admission.maxClientSessions = maxClientSessions;
+		admission.ipv4PrefixLength = ipv4PrefixLength;
+		admission.ipv6PrefixLength = ipv6PrefixLength;
+		return this;
+	}
+
+	/**
+	 * Limits the number of connections accepted per second, across all ports. Bursts of up to a second's worth of connections are tolerated; connections over the limit are answered with 421 and closed right away.
+	 *
+	 * @param maxAcceptRate The maximum number of connections per second or 0 for no limit, which is the default.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setMaxAcceptRate(int maxAcceptRate) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Admission limits can only be changed when the server is offline.");
+		}
+		admission.acceptInterval = (maxAcceptRate > 0 ? TimeUnit.SECONDS.toNanos(1) / maxAcceptRate : 0);
+		return this;
+	}
+
+	/**
+	 * Limits the number of connections per client IP address. Bursts of up to the whole limit are tolerated; connections over the limit are answered with 421 and closed right away.
+	 *
+	 * @param connections The maximum number of connections per period or 0 for no limit, which is the default.
+	 * @param period      The period.
+	 * @param unit        The unit of the period.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setConnectionRateLimit(int connections, long period, TimeUnit unit) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Rate limits can only be changed when the server is offline.");
+		}
+		connectionRateLimiter = (connections > 0 ? new SMTPRateLimiter(connections, unit.toNanos(period)) : null);
+		return this;
+	}
+
+	/**
+	 * Limits the number of transactions per client IP address and per sender domain. MAIL commands over the limit are answered with 451 before the event handler is called. Only MAIL commands that pass the syntax and size checks count.
+	 *
+	 * @param messages The maximum number of messages per period or 0 for no limit, which is the default.
+	 * @param period   The period.
+	 * @param unit     The unit of the period.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setMessageRateLimit(int messages, long period, TimeUnit unit) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Rate limits can only be changed when the server is offline.");
+		}
+		messageRateLimiter = (messages > 0 ? new SMTPRateLimiter(messages, unit.toNanos(period)) : null);
+		return this;
+	}
+
+	/**
+	 * Limits the number of recipients per client IP address and per sender domain. RCPT commands over the limit are answered with 451 before the event handler is asked about the recipient.
+	 *
+	 * @param recipients The maximum number of recipients per period or 0 for no limit, which is the default.
+	 * @param period     The period.
+	 * @param unit       The unit of the period.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setRecipientRateLimit(int recipients, long period, TimeUnit unit) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Rate limits can only be changed when the server is offline.");
+		}
+		recipientRateLimiter = (recipients > 0 ? new SMTPRateLimiter(recipients, unit.toNanos(period)) : null);
+		return this;
+	}
+
+	/**
+	 * Limits the number of recipients of a single mail. Further RCPT commands are answered with 452, so the client can send the mail to the remaining recipients in another transaction.
+	 *
+	 * @param maxRecipients The maximum number of recipients or -1 for no limit, which is the default.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setMaxRecipients(int maxRecipients) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Rate limits can only be changed when the server is offline.");
+		}
+		this.maxRecipients = maxRecipients;
+		return this;
+	}
+
+	/**
+	 * Sets how many client addresses, and separately how many sender domains, each rate limit keeps track of, which caps its memory use.
+	 * Addresses and domains that haven't been seen for a while are forgotten when the limit is reached. If all of them are still active, new ones are refused like those over the limit, until some have become idle.
+	 *
+	 * @param rateLimitKeys The number of addresses and domains, 100000 by default.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setRateLimitKeys(int rateLimitKeys) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Rate limits can only be changed when the server is offline.");
+		}
+		this.rateLimitKeys = rateLimitKeys;
+		return this;
+	}
+
+	/**
+	 * Sets how long the server waits for an asynchronous event handler hook, e.g. {@link SMTPEventHandler#isSenderAcceptedAsync(SMTPSession, sh.hell.jsmtp.content.SMTPAddress)}, before answering the command with 451.
+	 * Every hook call gets the full timeout. Use 0 to wait forever, which is the default.
+	 *
+	 * @param timeout The timeout or 0.
+	 * @param unit    The unit of the timeout.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setHookTimeout(long timeout, TimeUnit unit) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The hook timeout can only be changed when the server is offline.");
+		}
+		this.hookTimeout = unit.toMillis(timeout);
+		return this;
+	}
+
+	/**
+	 * Sets how long a client may take to send its first command after the greeting. Use 0 to wait forever. The default is 5 minutes.
+	 *
+	 * @param timeout The timeout or 0.
+	 * @param unit    The unit of the timeout.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setGreetingTimeout(long timeout, TimeUnit unit) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Timeouts can only be changed when the server is offline.");
+		}
+		this.greetingTimeout = unit.toMillis(timeout);
+		return this;
+	}
+
+	/**
+	 * Sets how long a client may take to send its next command, as in RFC 5321, section 4.5.3.2.
+	 * The timeout is not reset by partial lines, so clients can't keep a session open by trickling in a command.
+	 * Use 0 to wait forever. The default is 5 minutes.
+	 *
+	 * @param timeout The timeout or 0.
+	 * @param unit    The unit of the timeout.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setCommandTimeout(long timeout, TimeUnit unit) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Timeouts can only be changed when the server is offline.");
+		}
+		this.commandTimeout = unit.toMillis(timeout);
+		return this;
+	}
+
+	/**
+	 * Sets how long a client may take to send the next line of its mail during DATA, or the next bytes of a BDAT chunk.
+	 * Use 0 to wait forever. The default is 3 minutes.
+	 *
+	 * @param timeout The timeout or 0.
+	 * @param unit    The unit of the timeout.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setDataTimeout(long timeout, TimeUnit unit) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Timeouts can only be changed when the server is offline.");
+		}
+		this.dataTimeout = unit.toMillis(timeout);
+		return this;
+	}
+
+	/**
+	 * Limits the total time a session may last. Use 0 for no limit, which is the default.
+	 *
+	 * @param timeout The timeout or 0.
+	 * @param unit    The unit of the timeout.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setSessionTimeout(long timeout, TimeUnit unit) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("Timeouts can only be changed when the server is offline.");
+		}
+		this.sessionTimeout = unit.toMillis(timeout);
+		return this;
+	}
+
+	/**
+	 * Sets the Executor that runs blocking sessions, e.g. a bounded pool to cap the number of threads during connection storms.
+	 * Connections the Executor rejects are closed right away.
+	 * By default, every session gets a new thread.
+	 *
+	 * @param sessionExecutor The Executor.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setSessionExecutor(Executor sessionExecutor) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The threading model can only be changed when the server is offline.");
+		}
+		this.sessionExecutor = sessionExecutor;
+		return this;
+	}
+
+	/**
+	 * Lets blocking sessions run on new threads created by the given ThreadFactory.
+	 *
+	 * @param threadFactory The ThreadFactory.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setSessionThreadFactory(ThreadFactory threadFactory) throws InvalidStateException
+	{
+		return this.setSessionExecutor(runnable->threadFactory.newThread(runnable).start());
+	}
+
+	/**
+	 * Lets every blocking session run on a virtual thread of its own.
+	 *
+	 * @return this
+	 * @throws InvalidStateException If the server is online or the JVM doesn't support virtual threads.
+	 * @see #areVirtualThreadsSupported()
+	 */
+	public SMTPServer useVirtualThreads() throws InvalidStateException
+	{
+		if(!areVirtualThreadsSupported())
+		{
+			throw new InvalidStateException("Virtual threads require Java 21 or newer.");
+		}
+		final ThreadFactory threadFactory;
+		try
+		{
+			// Thread.ofVirtual().name("SMTPSession #", 0).factory(), looked up reflectively so jSMTP still runs on Java 8.
+			final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			final Object builder = builderClass.getMethod("name", String.class, long.class).invoke(Thread.class.getMethod("ofVirtual").invoke(null), "SMTPSession #", 0L);
+			threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		}
+		catch(ReflectiveOperationException e)
+		{
+			throw new InvalidStateException("Failed to create a virtual thread factory: " + e.getMessage());
+		}
+		return this.setSessionThreadFactory(threadFactory);
+	}
+
+	/**
+	 * Enables the non-blocking mode, in which idle sessions don't occupy a thread.
+	 * Instead, the given number of selector threads wait for sessions to become ready and hand them over to a fixed pool of workers.
+	 * Use 0 to go back to the default of one thread per session.
+	 *
+	 * @param selectorThreads The number of selector threads or 0.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setSelectorThreads(int selectorThreads) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The threading model can only be changed when the server is offline.");
+		}
+		this.selectorThreads = selectorThreads;
+		return this;
+	}
+
+	/**
+	 * Sets the number of workers non-blocking sessions are processed by, which is also the number of SMTPEventHandler callbacks that can run at the same time.
+	 *
+	 * @param workerThreads The number of worker threads.
+	 * @return this
+	 * @throws InvalidStateException If the server is online.
+	 */
+	public SMTPServer setWorkerThreads(int workerThreads) throws InvalidStateException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The threading model can only be changed when the server is offline.");
+		}
+		this.workerThreads = workerThreads;
+		return this;
+	}
+
+	public boolean isNonBlocking()
+	{
+		return selectorThreads > 0;
+	}
+
+	/**
+	 * Returns a read-only snapshot of the sessions of the server, e.g. for monitoring.
+	 *
+	 * @return a read-only snapshot of the sessions of the server.
+	 */
+	public List<SMTPSession> getSessions()
+	{
+		return Collections.unmodifiableList(new ArrayList<>(sessions));
+	}
+
+	public int getSessionCount()
+	{
+		return sessions.size();
+	}
+
+	void sessionStarted(SMTPSession session)
+	{
+		sessions.add(session);
+		metrics.acceptedConnections.increment();
+		metrics.activeSessions.increment();
+		session.trace(SMTPTracePhase.ACCEPTED);
+		if(session.proxyHeader == null)
+		{
+			session.applyWireTraceFilter();
+		}
+	}
+
+	/**
+	 * Admits a new connection from the given address, see {@link SMTPAdmission#admit(InetAddress)}, and then takes a token from its connection rate limit, so refused connections don't use it up.
+	 *
+	 * @param address The address of the client.
+	 * @return null if the connection was admitted, or the reply to send to the client before closing the connection.
+	 */
+	byte[] admit(InetAddress address)
+	{
+		byte[] rejection = admission.admit(address);
+		if(rejection == null && connectionRateLimiter != null && !connectionRateLimiter.acquire(address))
+		{
+			admission.release(address);
+			metrics.rateLimited.increment();
+			rejection = SMTPAdmission.TOO_MANY_CONNECTIONS;
+		}
+		if(rejection != null)
+		{
+			metrics.rejectedConnections.increment();
+		}
+		return rejection;
+	}
+
+	/**
+	 * Admits a new connection that waits for its PROXY protocol header, see {@link SMTPAdmission#reserve()}.
+	 *
+	 * @return null if the connection was admitted, or the reply to send to the client before closing the connection.
+	 */
+	byte[] reserve()
+	{
+		final byte[] rejection = admission.reserve();
+		if(rejection != null)
+		{
+			metrics.rejectedConnections.increment();
+		}
+		return rejection;
+	}
+
+	/**
+	 * Admits the client named by the PROXY protocol header of a connection that has been admitted with {@link #reserve()}, if it's within the limit of sessions per client network and then the connection rate limit.
+	 *
+	 * @param address The address of the client.
+	 * @return null if the client was admitted, or the reply to send to the client before closing the connection.
+	 */
+	byte[] admitClient(InetAddress address)
+	{
+		if(!admission.admitClient(address))
+		{
+			metrics.rejectedConnections.increment();
+			return SMTPAdmission.TOO_MANY_CONNECTIONS;
+		}
+		if(connectionRateLimiter != null && !connectionRateLimiter.acquire(address))
+		{
+			admission.releaseClient(address);
+			metrics.rejectedConnections.increment();
+			metrics.rateLimited.increment();
+			return SMTPAdmission.TOO_MANY_CONNECTIONS;
+		}
+		return null;
+	}
+
+	boolean isIPAccepted(String ip)
+	{
+		final long start = System.nanoTime();
+		final boolean accepted = eventHandler.isIPAccepted(ip);
+		metrics.isIPAccepted.record(System.nanoTime() - start);
+		if(!accepted)
+		{
+			metrics.rejectedConnections.increment();
+		}
+		return accepted;
+	}
+
+	/**
+	 * Removes the given session and releases its admission, unless that has already happened.
+	 *
+	 * @param session The session.
+	 */
+	void sessionEnded(SMTPSession session)
+	{
+		if(session.ended.compareAndSet(false, true))
+		{
+			session.timeout.cancel();
+			if(session.admitted)
+			{
+				admission.release(session.admittedAddress);
+			}
+			sessions.remove(session);
+			metrics.activeSessions.decrement();
+			session.trace(SMTPTracePhase.CLOSED);
+			if(draining)
+			{
+				synchronized(drainLock)
+				{
+					drainLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	SMTPSelector nextSelector()
+	{
+		synchronized(selectors)
+		{
+			if(++nextSelector >= selectors.length)
+			{
+				nextSelector = 0;
+			}
+			return selectors[nextSelector];
+		}
+	}
+
+	public SMTPServer start() throws InvalidStateException, IOException
+	{
+		if(isOnline())
+		{
+			throw new InvalidStateException("The server is already online.");
+		}
+		if(ports.length == 0)
+		{
+			throw new InvalidStateException("Can't start a server with no ports to listen on.");
+		}
+		if(Arrays.asList(tlsModes).contains(SMTPTLSMode.IMPLICIT) && (isNonBlocking() ? sslContext == null : sslSocketFactory == null))
+		{
+			throw new InvalidStateException("Implicit TLS requires " + (isNonBlocking() ? "an SSLContext." : "an SSLSocketFactory."));
+		}
+		if(isNonBlocking() && selectors == null)
+		{
+			selectors = new SMTPSelector[selectorThreads];
+			for(int i = 0; i < selectorThreads; i++)
+			{
+				selectors[i] = new SMTPSelector(i);
+			}
+			workers = Executors.newFixedThreadPool(workerThreads, runnable->
+			{
+				final Thread thread = new Thread(runnable, "SMTPWorker");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		if(timer == null)
+		{
+			timer = new SMTPTimer();
+		}
+		if(tracer == null && traceListener != null)
+		{
+			tracer = new SMTPTracer(traceListener, traceBufferSize, metrics.droppedTraceEvents);
+		}
+		for(SMTPRateLimiter rateLimiter : new SMTPRateLimiter[]{connectionRateLimiter, messageRateLimiter, recipientRateLimiter})
+		{
+			if(rateLimiter != null)
+			{
+				rateLimiter.maxKeys = rateLimitKeys;
+			}
+		}
+		if(tlsProfile == null && (sslContext != null || sslSocketFactory != null))
+		{
+			tlsProfile = (sslContext != null ? SMTPTLSProfile.of(sslContext, false) : SMTPTLSProfile.of(sslSocketFactory, false));
+		}
+		if(tlsProfile != null && sslContext != null)
+		{
+			tlsProfile.configure(sslContext.getServerSessionContext());
+		}
+		synchronized(listeners)
+		{
+			for(int i = 0; i < ports.length; i++)
+			{
+				final SMTPTLSMode tlsMode = (i < tlsModes.length ? tlsModes[i] : SMTPTLSMode.STARTTLS);
+				logger.info("Binding to " + (bindAddress == null ? "*" : bindAddress.getHostAddress()) + ":" + ports[i] + (tlsMode == SMTPTLSMode.IMPLICIT ? " with implicit TLS..." : "..."));
+				SMTPListener.listen(this, ports[i], tlsMode, listeners);
+			}
+			metrics.unregister();
+			metrics.register(jmxName == null ? "sh.hell.jsmtp:type=SMTPServer,name=" + listeners.get(0).socket.getLocalPort() : jmxName);
+		}
+		logger.info("SMTP Server started.");
+		return this;
+	}
+
+	/**
+	 * Stops listening for new connections and lets all sessions finish their current mail transaction.
+	 * Sessions are answered with 421 and closed as soon as they are waiting for a command outside of a mail transaction, so no mail that is being received is lost.
+	 * Sessions that are still open at the deadline are closed, as with {@link #stop(boolean)}.
+	 *
+	 * @param drainTimeout The time to give the sessions.
+	 * @return The numbers of sessions that ended in time and that had to be closed.
+	 */
+	public SMTPDrainResult stop(Duration drainTimeout)
+	{
+		this.stop(false);
+		final int count = sessions.size();
+		logger.info("Draining " + count + " sessions...");
+		draining = true;
+		try
+		{
+			for(SMTPSession session : sessions)
+			{
+				session.drain();
+			}
+			final long deadline = System.nanoTime() + drainTimeout.toNanos();
+			synchronized(drainLock)
+			{
+				long remaining;
+				while(!sessions.isEmpty() && (remaining = deadline - System.nanoTime()) > 0)
+				{
+					drainLock.wait(Math.max(1, remaining / 1000000));
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		final int killed = Math.min(count, sessions.size());
+		this.stop(true);
+		draining = false;
+		final SMTPDrainResult result = new SMTPDrainResult(count - killed, killed);
+		logger.info("Sessions: " + result);
+		return result;
+	}
+
+	/**
+	 * Stops listening for new connections on the SMTPServer. Optionally, disconnects all clients.
+	 *
+	 * @param closeSessions Set to true to not only stop listening but also to disconnect all clients.
+	 * @return this
+	 */
+	public SMTPServer stop(boolean closeSessions)
+	{
+		if(isOnline())
+		{
+			logger.info("Interrupting listeners...");
+			synchronized(listeners)
+			{
+				for(SMTPListener listener : listeners)
+				{
+					try
+					{
+						listener.socket.close();
+					}
+					catch(IOException ignored)
+					{
+					}
+				}
+				listeners.clear();
+			}
+		}
+		if(closeSessions)
+		{
+			logger.info("Closing sessions...");
+			// The listeners are closed, so no sessions are added while iterating.
+			for(SMTPSession session : sessions)
+			{
+				session.close();
+				sessionEnded(session);
+			}
+			if(selectors != null)
+			{
+				for(SMTPSelector selector : selectors)
+				{
+					selector.close();
+				}
+				selectors = null;
+				workers.shutdown();
+				workers = null;
+			}
+			if(timer != null)
+			{
+				timer.shutdown();
+				timer = null;
+			}
+			if(tracer != null)
+			{
+				tracer.shutdown();
+				tracer = null;
 			}
+			metrics.unregister();
 		}
 		return this;
 	}
@@ -8,482 +8,1420 @@ import sh.hell.jsmtp.content.SMTPMail;
 import sh.hell.jsmtp.exceptions.InvalidAddressException;
 import sh.hell.jsmtp.exceptions.TLSNegotiationFailedException;
 
-import javax.net.ssl.SSLSocket;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
+/**
+ * The protocol state of a client connected to an SMTPServer.
+ * The state machine is fed one line at a time, through an SMTPLineDecoder, by its transport, which is either a blocking socket run by the server's session Executor or a non-blocking channel served by the server's selector threads.
+ */
 @SuppressWarnings({"WeakerAccess", "unused"})
-public class SMTPSession extends Thread
+public abstract class SMTPSession
 {
 	private static final Logger logger = LoggerFactory.getLogger(SMTPSession.class);
-	private final SMTPServer server;
+	private static final byte[] CRLF = new byte[]{'\r', '\n'};
+	private static final byte[] OK = encode("250 OK");
+	private static final byte[] BYE = encode("221 Make sure to share the hell out of it if you liked it! ...and I'll see you next time.");
+	private static final byte[] START_MAIL_INPUT = encode("354 Start mail input; end with <CRLF>.<CRLF>");
+	private static final byte[] START_TLS = encode("220 Cast the Transport Layer Security spell.");
+	private static final byte[] TLS_ACTIVE = encode("454 The Transport Layer Security spell is still active.");
+	private static final byte[] LINE_TOO_LONG = encode("500 Line too long.");
+	private static final byte[] BARE_LF = encode("500 Bare <LF> received.");
+	private static final byte[] UNRECOGNIZED = encode("500 Command unrecognized");
+	private static final byte[] HELO_SYNTAX = encode("501 Syntax: HELO <hostname>");
+	private static final byte[] EHLO_SYNTAX = encode("501 Syntax: EHLO <hostname>");
+	private static final byte[] MAIL_SYNTAX = encode("501 Syntax: MAIL FROM:<address>");
+	private static final byte[] RCPT_SYNTAX = encode("501 Syntax: RCPT TO:<address>");
+	private static final byte[] ARGUMENT_SYNTAX = encode("501 Syntax error in parameters or arguments");
+	private static final byte[] NOT_IMPLEMENTED = encode("502 Command not implemented");
+	private static final byte[] SEND_HELLO_FIRST = encode("503 Send HELO or EHLO first.");
+	private static final byte[] ENCRYPTION_REQUIRED = encode("503 Encryption is required. Send STARTTLS first.");
+	private static final byte[] ALREADY_SENT_MAIL = encode("503 You've already sent MAIL.");
+	private static final byte[] SEND_MAIL_FIRST = encode("503 Send MAIL first.");
+	private static final byte[] SEND_RCPT_FIRST = encode("503 Send RCPT first.");
+	private static final byte[] LOCAL_ERROR = encode("451 Local error in processing.");
+	private static final byte[] INSUFFICIENT_STORAGE = encode("452 Insufficient system storage, try again later.");
+	private static final byte[] TOO_MANY_MAILS = encode("451 Too many mails, try again later.");
+	private static final byte[] TOO_MANY_RECIPIENTS = encode("451 Too many recipients, try again later.");
+	private static final byte[] RECIPIENT_LIMIT = encode("452 Too many recipients.");
+	private static final byte[] TOO_BIG = encode("552 Your email is too big.");
+	private static final byte[] SENDER_DENIED = encode("553 You're not allowed to send mail.");
+	private static final byte[] EMPTY_MAIL = encode("554 Transaction failed successfully");
+	private static final byte[] DELIVERY_FAILED = encode("554 Failed to deliver mail");
+	static final byte[] SHUTTING_DOWN = encode("421 Shutting down.");
+	static final byte[] TIMED_OUT = encode("421 Timeout, closing connection.");
+	private static final AtomicLong nextId = new AtomicLong(0);
+	private static final byte[] EHLO_PIPELINING = encode("250-PIPELINING");
+	private static final byte[] EHLO_STARTTLS = encode("250-STARTTLS");
+	private static final byte[] EHLO_VRFY = encode("250-VRFY");
+	private static final byte[] EHLO_TAIL = encode("250-8BITMIME\r\n250-BINARYMIME\r\n250-CHUNKING\r\n250 SMTPUTF8");
+	private static final byte[] BDAT_SYNTAX = encode("501 Syntax: BDAT <size> [LAST]");
+	private static final byte[] BDAT_REQUIRED = encode("503 Send the mail using BDAT.");
+	final SMTPServer server;
+	/**
+	 * A number identifying the session, unique within the JVM.
+	 */
+	public final long id = nextId.incrementAndGet();
+	/**
+	 * How the port the session was accepted on uses TLS.
+	 */
+	final SMTPTLSMode tlsMode;
 	public String hostname;
 	public boolean extendedSMTP = false;
-	private Socket socket;
-	private OutputStreamWriter writer;
-	private Scanner scanner;
+	volatile boolean closed = false;
+	/**
+	 * Set once the session has been removed from its server, so that it only happens once.
+	 */
+	final AtomicBoolean ended = new AtomicBoolean(false);
+	/**
+	 * True if the session holds a slot of the server's SMTPAdmission, which is released when the session ends.
+	 */
+	volatile boolean admitted;
+	/**
+	 * The address the session has been admitted for by the server's SMTPAdmission, or null while a session using the PROXY protocol waits for its header.
+	 */
+	volatile InetAddress admittedAddress;
+	/**
+	 * The PROXY protocol header the session waits for before greeting, null if its listener doesn't use the PROXY protocol or the header has been received.
+	 */
+	SMTPProxyHeader proxyHeader;
+	/**
+	 * The address of the client according to the PROXY protocol header, or null.
+	 */
+	private volatile InetSocketAddress proxiedAddress;
+	/**
+	 * The session's timeout on the server's SMTPTimer. Its deadline is moved whenever the session starts waiting for a command or the next part of a mail.
+	 */
+	final SMTPTimer.Timeout timeout = new SMTPTimer.Timeout()
+	{
+		@Override
+		void expired()
+		{
+			timedOut();
+		}
+	};
+	/**
+	 * The System.nanoTime at which the session is closed no matter what, or 0.
+	 */
+	private long sessionDeadline;
+	/**
+	 * True if a line or chunk has been received since the deadline was last moved. A client trickling in a command byte by byte doesn't move its deadline.
+	 */
+	private boolean progressed;
 	private SMTPMail buildingMail;
+	/**
+	 * True if the sender announced BODY=BINARYMIME, in which case the mail can only be sent using BDAT.
+	 */
+	private boolean binaryMIME;
+	/**
+	 * The raw mail received through DATA or BDAT so far, null if neither has been sent in the current transaction or the mail is being streamed to the event handler.
+	 */
+	private SMTPSpool message;
+	/**
+	 * True if the raw mail of the current transaction is being streamed to the event handler.
+	 */
+	private boolean streaming;
+	private long messageSize;
+	/**
+	 * True while the lines received are part of the mail sent through DATA.
+	 */
+	private boolean receivingData;
+	private boolean messageLineTooLong;
+	private boolean messageSpoolFailed;
+	/**
+	 * The size limit of the current transaction's mail, which is enforced while it is being received.
+	 */
+	private long messageSizeLimit;
+	/**
+	 * True once the mail exceeded its size limit, after which the rest of it is read but discarded.
+	 */
+	private boolean messageTooBig;
+	/**
+	 * True once the mail didn't fit into the server's memory budget, after which the rest of it is read but discarded.
+	 */
+	private boolean messageOverBudget;
+	/**
+	 * The number of bytes of the current BDAT chunk that still have to be read.
+	 */
+	private long chunkRemaining;
+	private boolean chunkLast;
+	/**
+	 * The error reply to the current BDAT chunk, which is sent and whose bytes are discarded once the chunk has been read.
+	 */
+	private byte[] chunkError;
+	/**
+	 * The latency histogram of the command waiting for its final reply, or null.
+	 */
+	private SMTPLatencyHistogram pendingLatency;
+	/**
+	 * The System.nanoTime at which the command waiting for its final reply was received, or for DATA and BDAT, at which the mail or chunk ended.
+	 */
+	private long commandStart;
+	/**
+	 * True if the next final reply is the one to the end of a mail, which counts it as accepted or rejected.
+	 */
+	private boolean endingMessage;
+	/**
+	 * True if the reply to the end of a mail has been queued but not flushed yet.
+	 */
+	private boolean replyPending;
+	long bytesReceived;
+	long bytesSent;
+	/**
+	 * The value of {@link #bytesSent} at the last flush, so flushes without new replies aren't counted.
+	 */
+	private long bytesFlushed;
+	/**
+	 * The recording of the bytes exchanged with the client, or null if the session isn't being traced.
+	 */
+	private volatile SMTPWireTrace wireTrace;
 
-	SMTPSession(SMTPServer server, Socket socket) throws IOException
+	SMTPSession(SMTPServer server, SMTPTLSMode tlsMode)
 	{
-		super("SMTPSession on :" + socket.getLocalPort());
 		this.server = server;
-		this.socket = socket;
-		this.writer = new OutputStreamWriter(socket.getOutputStream());
-		this.start();
+		this.tlsMode = tlsMode;
+	}
+
+	abstract void send(byte[] data, int offset, int length) throws IOException;
+
+	abstract void flush() throws IOException;
+
+	/**
+	 * Called by the transport after it has sent the queued replies.
+	 */
+	void flushed()
+	{
+		if(bytesSent != bytesFlushed)
+		{
+			bytesFlushed = bytesSent;
+			server.metrics.flushes.increment();
+		}
+		if(replyPending)
+		{
+			replyPending = false;
+			trace(SMTPTracePhase.REPLY_SENT);
+		}
+	}
+
+	/**
+	 * Called by the transport whenever it has received bytes from the client, after decryption.
+	 *
+	 * @param count The number of bytes.
+	 */
+	void countReceived(int count)
+	{
+		bytesReceived += count;
+		server.metrics.receivedBytes.add(count);
+	}
+
+	/**
+	 * Tells the server's SMTPTraceListener, if any, that the session has entered the given phase.
+	 *
+	 * @param phase The phase.
+	 */
+	void trace(SMTPTracePhase phase)
+	{
+		final SMTPTracer tracer = server.tracer;
+		if(tracer != null)
+		{
+			tracer.trace(this, phase);
+		}
+	}
+
+	/**
+	 * Upgrades the transport to TLS after the 220 reply to STARTTLS has been flushed.
+	 * Any plaintext input that was buffered after the STARTTLS command has to be discarded.
+	 *
+	 * @throws IOException                   When the handshake fails.
+	 * @throws TLSNegotiationFailedException When the negotiated session is unusable.
+	 */
+	abstract void startTLS() throws IOException, TLSNegotiationFailedException;
+
+	abstract void closeTransport();
+
+	abstract SocketAddress getRemoteSocketAddress();
+
+	abstract boolean isTLSAvailable();
+
+	/**
+	 * Returns the address of the client, which is the address named by the PROXY protocol header if the session's listener uses the PROXY protocol.
+	 *
+	 * @return the address of the client.
+	 * @see SMTPServer#setProxyProtocolPorts(int...)
+	 */
+	public SocketAddress getClientAddress()
+	{
+		final InetSocketAddress proxiedAddress = this.proxiedAddress;
+		return (proxiedAddress == null ? getRemoteSocketAddress() : proxiedAddress);
+	}
+
+	/**
+	 * Reads the PROXY protocol header and then admits the client it names. When the connection was accepted, it was only admitted against the accept rate and the number of sessions.
+	 *
+	 * @param decoder The decoder.
+	 * @return False if the header is incomplete. Otherwise, the session has either been closed or can be greeted.
+	 * @throws IOException When writing the rejection fails.
+	 */
+	boolean handleProxyHeader(SMTPLineDecoder decoder) throws IOException
+	{
+		try
+		{
+			if(!proxyHeader.read(decoder))
+			{
+				return false;
+			}
+		}
+		catch(ProtocolException e)
+		{
+			logger.info(getRemoteSocketAddress().toString() + " = Invalid PROXY protocol header: " + e.getMessage());
+			closed = true;
+			return true;
+		}
+		proxiedAddress = proxyHeader.source;
+		proxyHeader = null;
+		applyWireTraceFilter();
+		final InetAddress address = ((InetSocketAddress) getClientAddress()).getAddress();
+		final byte[] rejection = server.admitClient(address);
+		if(rejection != null)
+		{
+			if(tlsMode != SMTPTLSMode.IMPLICIT)
+			{
+				write(rejection);
+				flush();
+			}
+			closed = true;
+			return true;
+		}
+		admittedAddress = address;
+		if(!server.isIPAccepted(getClientAddress().toString()))
+		{
+			closed = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Starts recording the bytes exchanged with the client, replacing the current recording, if any.
+	 *
+	 * @param size The number of most recent bytes to keep.
+	 * @return The recording.
+	 */
+	public SMTPWireTrace startWireTrace(int size)
+	{
+		final SMTPWireTrace wireTrace = new SMTPWireTrace(size);
+		this.wireTrace = wireTrace;
+		return wireTrace;
+	}
+
+	public void stopWireTrace()
+	{
+		this.wireTrace = null;
+	}
+
+	/**
+	 * Returns the recording of the bytes exchanged with the client, which can be dumped at any time.
+	 *
+	 * @return The recording, or null if the session isn't being traced.
+	 */
+	public SMTPWireTrace getWireTrace()
+	{
+		return wireTrace;
+	}
+
+	/**
+	 * Starts recording the session if the server's wire trace filter selects it.
+	 */
+	void applyWireTraceFilter()
+	{
+		final Predicate<SMTPSession> filter = server.wireTraceFilter;
+		if(filter != null && wireTrace == null && filter.test(this))
+		{
+			startWireTrace(server.wireTraceSize);
+		}
+	}
+
+	/**
+	 * Answers with 421 and closes the session because it has not sent a command or the next part of its mail in time.
+	 * This is called on the server's timer thread, so transports have to hand this over to whoever is currently processing the session.
+	 */
+	abstract void timedOut();
+
+	/**
+	 * Lets the session answer with 421 and close as soon as it is waiting for a command outside of a mail transaction, which may be right away.
+	 * This is called on the thread stopping the server, see {@link SMTPServer#stop(java.time.Duration)}.
+	 */
+	abstract void drain();
+
+	/**
+	 * Returns whether the session is in the middle of a mail transaction, which a draining server lets finish.
+	 *
+	 * @return whether the session is in the middle of a mail transaction.
+	 */
+	boolean inTransaction()
+	{
+		return buildingMail != null || receivingData || chunkRemaining > 0;
+	}
+
+	/**
+	 * Waits for an event handler hook that has not completed yet and then resumes the state machine with its result.
+	 * This implementation blocks the session's thread; non-blocking transports stop processing input until the hook completes instead.
+	 *
+	 * @param future       The pending result of the hook.
+	 * @param continuation The rest of the command that called the hook.
+	 * @param <T>          The type of the hook's result.
+	 * @throws IOException When writing a reply fails.
+	 */
+	<T> void suspend(CompletableFuture<T> future, HookContinuation<T> continuation) throws IOException
+	{
+		T result = null;
+		try
+		{
+			result = (server.hookTimeout > 0 ? future.get(server.hookTimeout, TimeUnit.MILLISECONDS) : future.get());
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch(ExecutionException | CancellationException e)
+		{
+			hookFailed(e.getCause() == null ? e : e.getCause());
+		}
+		catch(TimeoutException e)
+		{
+			hookTimedOut();
+		}
+		continuation.resume(result);
+	}
+
+	void hookFailed(Throwable e)
+	{
+		logger.warn((hostname == null ? getRemoteSocketAddress().toString() : hostname) + " = Event handler hook failed: " + e);
+	}
+
+	void hookTimedOut()
+	{
+		logger.warn((hostname == null ? getRemoteSocketAddress().toString() : hostname) + " = Event handler hook timed out.");
+	}
+
+	/**
+	 * Continues the command with the result of the given event handler hook, right away if the hook has already completed.
+	 *
+	 * @param latency      The histogram to record the hook's latency in.
+	 * @param start        The System.nanoTime at which the hook was called, which callers pass right before the call to the hook as arguments are evaluated from left to right.
+	 * @param stage        The result of the hook.
+	 * @param continuation The rest of the command.
+	 * @param <T>          The type of the hook's result.
+	 * @throws IOException When writing a reply fails.
+	 */
+	private <T> void await(SMTPLatencyHistogram latency, long start, CompletionStage<T> stage, HookContinuation<T> continuation) throws IOException
+	{
+		final CompletableFuture<T> future = stage.toCompletableFuture();
+		if(!future.isDone())
+		{
+			suspend(future, result->
+			{
+				latency.record(System.nanoTime() - start);
+				continuation.resume(result);
+			});
+			return;
+		}
+		latency.record(System.nanoTime() - start);
+		T result = null;
+		try
+		{
+			result = future.getNow(null);
+		}
+		catch(CompletionException | CancellationException e)
+		{
+			hookFailed(e.getCause() == null ? e : e.getCause());
+		}
+		continuation.resume(result);
+	}
+
+	/**
+	 * Creates a table containing the commands every session understands.
+	 *
+	 * @param metrics The metrics the latencies of the commands are recorded in.
+	 * @return a table containing the commands every session understands.
+	 */
+	static SMTPCommandTable createCommandTable(SMTPMetrics metrics)
+	{
+		final SMTPCommandTable commands = new SMTPCommandTable(metrics);
+		commands.put("HELO", SMTPCommand.allowedBeforeHello(SMTPSession::helo));
+		commands.put("EHLO", SMTPCommand.allowedBeforeHello(SMTPSession::ehlo));
+		commands.put("NOOP", SMTPCommand.allowedBeforeHello(SMTPSession::noop));
+		commands.put("RSET", SMTPCommand.allowedBeforeHello(SMTPSession::rset));
+		commands.put("QUIT", SMTPCommand.allowedBeforeHello(SMTPSession::quit));
+		commands.put("STARTTLS", SMTPSession::starttls);
+		commands.put("MAIL", SMTPSession::mail);
+		commands.put("RCPT", SMTPSession::rcpt);
+		commands.put("VRFY", SMTPSession::vrfy);
+		commands.put("DATA", SMTPSession::data);
+		commands.put("BDAT", SMTPSession::bdat);
+		commands.put("HELP", SMTPSession::help);
+		return commands;
+	}
+
+	private static byte[] encode(String reply)
+	{
+		return (reply + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Queues a reply line for the client. Replies are sent when the session is about to wait for more input, so all replies to a pipelined group of commands go out at once.
+	 *
+	 * @param message The reply without CRLF, e.g. "250 OK".
+	 * @throws IOException When writing fails.
+	 */
+	public void write(String message) throws IOException
+	{
+		final byte[] bytes = message.getBytes(Charset.defaultCharset());
+		send(bytes, 0, bytes.length);
+		send(CRLF, 0, 2);
+		bytesSent += bytes.length + 2;
+		if(message.length() < 4 || message.charAt(3) != '-')
+		{
+			replied(message.isEmpty() ? 0 : message.charAt(0));
+		}
+		final SMTPWireTrace wireTrace = this.wireTrace;
+		if(wireTrace != null)
+		{
+			wireTrace.sent(bytes, 0, bytes.length);
+			wireTrace.sent(CRLF, 0, 2);
+		}
 	}
 
-	void write(String message) throws IOException
+	/**
+	 * Queues a pre-encoded reply for the client.
+	 *
+	 * @param reply The reply including CRLF.
+	 * @throws IOException When writing fails.
+	 */
+	void write(byte[] reply) throws IOException
 	{
-		writer.write(message + "\r\n");
-		logger.debug((hostname == null ? socket.getRemoteSocketAddress().toString() : hostname) + " < " + message);
+		send(reply, 0, reply.length);
+		bytesSent += reply.length;
+		// Pre-encoded replies can consist of multiple lines, like the tail of the EHLO reply, so only their last line counts.
+		int lastLine = reply.length - 2;
+		while(lastLine > 0 && reply[lastLine - 1] != '\n')
+		{
+			lastLine--;
+		}
+		if(reply.length - lastLine < 6 || reply[lastLine + 3] != '-')
+		{
+			replied(reply[0]);
+		}
+		final SMTPWireTrace wireTrace = this.wireTrace;
+		if(wireTrace != null)
+		{
+			wireTrace.sent(reply, 0, reply.length);
+		}
+	}
+
+	/**
+	 * Records the latency of the command the given final reply answers, unless it is an intermediate 3xx reply, and counts the mail it may conclude.
+	 *
+	 * @param code The first digit of the reply code.
+	 */
+	private void replied(int code)
+	{
+		if(code == '3')
+		{
+			return;
+		}
+		if(pendingLatency != null)
+		{
+			pendingLatency.record(System.nanoTime() - commandStart);
+			pendingLatency = null;
+		}
+		if(endingMessage)
+		{
+			endingMessage = false;
+			replyPending = true;
+			(code == '2' ? server.metrics.acceptedMessages : server.metrics.rejectedMessages).increment();
+		}
+	}
+
+	/**
+	 * Puts the session on the server's timer, so the greeting timeout also covers the TLS handshake of implicit TLS.
+	 */
+	void startTimeout()
+	{
+		final SMTPTimer timer = server.timer;
+		if(timer != null && (server.greetingTimeout > 0 || server.commandTimeout > 0 || server.dataTimeout > 0 || server.sessionTimeout > 0))
+		{
+			sessionDeadline = (server.sessionTimeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(server.sessionTimeout) : 0);
+			moveDeadline(server.greetingTimeout);
+		}
+	}
+
+	void greet() throws IOException
+	{
+		write("220 " + server.eventHandler.getWelcomeMessage(this));
+		flush();
+		trace(SMTPTracePhase.GREETING_SENT);
+	}
+
+	/**
+	 * Lets the session time out after the given number of milliseconds or the end of its total session time, whichever comes first.
+	 *
+	 * @param phaseTimeout The timeout of the current phase in milliseconds, or 0 to only enforce the total session time.
+	 */
+	private void moveDeadline(long phaseTimeout)
+	{
+		final SMTPTimer timer = server.timer;
+		if(timer != null)
+		{
+			final long deadline = (phaseTimeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(phaseTimeout) : 0);
+			timer.move(timeout, (deadline == 0 || (sessionDeadline != 0 && sessionDeadline - deadline < 0) ? sessionDeadline : deadline));
+		}
 	}
 
 	private void reset()
 	{
 		this.hostname = null;
 		this.extendedSMTP = false;
+		this.abortMessage();
 		this.buildingMail = null;
 	}
 
-	@Override
-	public void run()
+	/**
+	 * Advances the state machine by the next line or, while a BDAT chunk is being read, the next bytes buffered in the given decoder.
+	 *
+	 * @param decoder The decoder.
+	 * @return False if the decoder needs more input first.
+	 * @throws IOException When writing a reply fails.
+	 */
+	boolean handleInput(SMTPLineDecoder decoder) throws IOException
+	{
+		if(chunkRemaining > 0)
+		{
+			if(!decoder.nextBytes(chunkRemaining))
+			{
+				waiting();
+				return false;
+			}
+			received();
+			final SMTPWireTrace wireTrace = this.wireTrace;
+			if(wireTrace != null)
+			{
+				wireTrace.received(decoder.array(), decoder.lineOffset, decoder.lineLength);
+			}
+			chunkRemaining -= decoder.lineLength;
+			if(chunkError == null)
+			{
+				appendMessage(decoder.array(), decoder.lineOffset, decoder.lineLength);
+			}
+			if(chunkRemaining == 0)
+			{
+				commandStart = System.nanoTime();
+				endChunk();
+			}
+			return true;
+		}
+		if(!decoder.next())
+		{
+			waiting();
+			return false;
+		}
+		received();
+		handleLine(decoder);
+		return true;
+	}
+
+	private void received()
+	{
+		if(!progressed)
+		{
+			progressed = true;
+			// No phase timeout applies while the input is being processed, e.g. while an event handler hook is running.
+			if(timeout.deadline != 0)
+			{
+				moveDeadline(0);
+			}
+		}
+	}
+
+	/**
+	 * Moves the deadline as the session starts waiting for more input, unless it hasn't received anything since it last did.
+	 */
+	private void waiting()
 	{
+		if(progressed)
+		{
+			progressed = false;
+			if(sessionDeadline != 0 || server.commandTimeout > 0 || server.dataTimeout > 0)
+			{
+				moveDeadline(receivingData || chunkRemaining > 0 ? server.dataTimeout : server.commandTimeout);
+			}
+		}
+	}
+
+	/**
+	 * Advances the state machine by the current line of the given decoder.
+	 *
+	 * @param decoder The decoder that has just returned a line.
+	 * @throws IOException When writing the reply fails.
+	 */
+	void handleLine(SMTPLineDecoder decoder) throws IOException
+	{
+		final SMTPWireTrace wireTrace = this.wireTrace;
+		if(wireTrace != null)
+		{
+			wireTrace.received(decoder.array(), decoder.lineOffset, decoder.lineLength);
+			wireTrace.received(CRLF, 0, 2);
+		}
+		if(receivingData)
+		{
+			handleDataLine(decoder);
+			return;
+		}
+		if(server.draining && buildingMail == null)
+		{
+			write(SHUTTING_DOWN);
+			closed = true;
+			return;
+		}
+		final byte[] arr = decoder.array();
+		final int offset = decoder.lineOffset;
+		final int end = offset + decoder.lineLength;
+		if(decoder.lineTooLong)
+		{
+			write(LINE_TOO_LONG);
+			return;
+		}
+		if(decoder.bareLF)
+		{
+			write(BARE_LF);
+			return;
+		}
+		int verbEnd = offset;
+		while(verbEnd < end && arr[verbEnd] != ' ')
+		{
+			verbEnd++;
+		}
+		final int index = server.commands.indexOf(arr, offset, verbEnd - offset);
+		final SMTPCommand command = (index == -1 ? null : server.commands.command(index));
+		if(command != null)
+		{
+			pendingLatency = server.commands.latency(index);
+			commandStart = System.nanoTime();
+		}
+		if(command != null && !command.requiresHello())
+		{
+			command.execute(this, verbEnd + 1 < end ? new String(arr, verbEnd + 1, end - verbEnd - 1, Charset.defaultCharset()) : "");
+		}
+		else if(hostname == null)
+		{
+			write(SEND_HELLO_FIRST);
+		}
+		else if(command != null)
+		{
+			command.execute(this, verbEnd + 1 < end ? new String(arr, verbEnd + 1, end - verbEnd - 1, Charset.defaultCharset()) : "");
+		}
+		else
+		{
+			write(UNRECOGNIZED);
+		}
+	}
+
+	void helo(String argument) throws IOException
+	{
+		trace(SMTPTracePhase.EHLO);
+		if(argument.length() > 0 && argument.indexOf(' ') == -1)
+		{
+			hostname = argument;
+			write("250 " + server.eventHandler.getHostname(this));
+		}
+		else
+		{
+			write(HELO_SYNTAX);
+		}
+	}
+
+	void ehlo(String argument) throws IOException
+	{
+		trace(SMTPTracePhase.EHLO);
+		if(argument.length() > 0 && argument.indexOf(' ') == -1)
+		{
+			hostname = argument;
+			extendedSMTP = true;
+			write("250-" + server.eventHandler.getHostname(this));
+			write(EHLO_PIPELINING);
+			if(!isEncrypted() && isTLSAvailable())
+			{
+				write(EHLO_STARTTLS);
+			}
+			final int sizeLimit = server.eventHandler.getSizeLimit(this);
+			if(sizeLimit > -1)
+			{
+				write("250-SIZE " + sizeLimit);
+			}
+			if(server.eventHandler.isVRFYallowed(this))
+			{
+				write(EHLO_VRFY);
+			}
+			write(EHLO_TAIL);
+		}
+		else
+		{
+			write(EHLO_SYNTAX);
+		}
+	}
+
+	void noop(String argument) throws IOException
+	{
+		write(OK);
+	}
+
+	void rset(String argument) throws IOException
+	{
+		this.reset();
+		write(OK);
+	}
+
+	void quit(String argument) throws IOException
+	{
+		write(BYE);
+		closed = true;
+	}
+
+	void starttls(String argument) throws IOException
+	{
+		if(isEncrypted() || !isTLSAvailable())
+		{
+			write(TLS_ACTIVE);
+		}
+		else
+		{
+			write(START_TLS);
+			flush();
+			try
+			{
+				startTLS();
+				this.reset();
+			}
+			catch(IOException | TLSNegotiationFailedException e)
+			{
+				logger.info((hostname == null ? getRemoteSocketAddress().toString() : hostname) + " = TLS handshake failed: " + e.getMessage());
+				closed = true;
+			}
+		}
+	}
+
+	void mail(String argument) throws IOException
+	{
+		trace(SMTPTracePhase.MAIL);
+		if(buildingMail != null)
+		{
+			write(ALREADY_SENT_MAIL);
+			return;
+		}
+		final SMTPPathArguments arguments = SMTPPathArguments.parse(argument, "FROM:");
+		if(arguments == null)
+		{
+			write(MAIL_SYNTAX);
+			return;
+		}
+		final SMTPAddress sender;
 		try
 		{
-			write("220 " + server.eventHandler.getWelcomeMessage(this));
-			writer.flush();
-			boolean continueDo;
-			do
+			sender = SMTPAddress.fromText(arguments.path);
+		}
+		catch(InvalidAddressException ignored)
+		{
+			write("553 <" + arguments.path + "> is not a valid address.");
+			return;
+		}
+		// Clients over the limit are refused before the event handler is called, but tokens are only taken once the command has passed all checks.
+		final String domain = sender.getDomain().toLowerCase(Locale.ROOT);
+		if(server.messageRateLimiter != null && server.messageRateLimiter.isLimited(getClientInetAddress(), domain))
+		{
+			server.metrics.rateLimited.increment();
+			write(TOO_MANY_MAILS);
+			return;
+		}
+		if(!isEncrypted() && server.eventHandler.isEncryptionRequired(this))
+		{
+			write(ENCRYPTION_REQUIRED);
+			return;
+		}
+		if(isOutOfMemoryBudget())
+		{
+			write(INSUFFICIENT_STORAGE);
+			return;
+		}
+		final int sizeLimit = server.eventHandler.getSizeLimit(this);
+		if(arguments.size > 0 && sizeLimit >= 0 && arguments.size > sizeLimit)
+		{
+			write("552 I don't accept " + arguments.size + "-byte emails.");
+		}
+		else if(server.messageRateLimiter != null && !acquireRateLimit(server.messageRateLimiter, domain))
+		{
+			write(TOO_MANY_MAILS);
+		}
+		else
+		{
+			await(server.metrics.isSenderAccepted, System.nanoTime(), server.eventHandler.isSenderAcceptedAsync(this, sender), accepted->
 			{
-				continueDo = false;
-				try
+				if(accepted == null)
+				{
+					write(LOCAL_ERROR);
+				}
+				else if(accepted)
 				{
-					scanner = new Scanner(new InputStreamReader(socket.getInputStream())).useDelimiter("\r\n");
-					do
-					{
-						String line = scanner.next();
-						logger.debug((hostname == null ? socket.getRemoteSocketAddress().toString() : hostname) + " > " + line);
-						if(line.toUpperCase().startsWith("HELO"))
-						{
-							String[] arr = line.split(" ");
-							if(arr.length == 2)
-							{
-								hostname = arr[1];
-								write("250 " + server.eventHandler.getHostname(this));
-							}
-							else
-							{
-								write("501 Syntax: HELO <hostname>");
-							}
-						}
-						else if(line.toUpperCase().startsWith("EHLO"))
-						{
-							String[] arr = line.split(" ");
-							if(arr.length == 2)
-							{
-								hostname = arr[1];
-								extendedSMTP = true;
-								write("250-" + server.eventHandler.getHostname(this));
-								write("250-PIPELINING");
-								if(!isEncrypted())
-								{
-									write("250-STARTTLS");
-								}
-								final int sizeLimit = server.eventHandler.getSizeLimit(this);
-								if(sizeLimit > -1)
-								{
-									write("250-SIZE " + sizeLimit);
-								}
-								if(server.eventHandler.isVRFYallowed(this))
-								{
-									write("250-VRFY");
-								}
-								write("250-8BITMIME");
-								write("250 SMTPUTF8");
-							}
-							else
-							{
-								write("501 Syntax: EHLO <hostname>");
-							}
-						}
-						else if(line.toUpperCase().startsWith("NOOP"))
-						{
-							write("250 OK");
-						}
-						else if(line.toUpperCase().startsWith("RSET"))
-						{
-							this.reset();
-							write("250 OK");
-						}
-						else if(line.toUpperCase().startsWith("QUIT"))
-						{
-							write("221 Make sure to share the hell out of it if you liked it! ...and I'll see you next time.");
-							this.interrupt();
-						}
-						else if(hostname == null)
-						{
-							write("503 Send HELO or EHLO first.");
-						}
-						else if(line.toUpperCase().startsWith("STARTTLS"))
-						{
-							if(isEncrypted())
-							{
-								write("454 The Transport Layer Security spell is still active.");
-							}
-							else
-							{
-								write("220 Cast the Transport Layer Security spell.");
-								writer.flush();
-								try
-								{
-									final SSLSocket sslSocket = (SSLSocket) server.sslSocketFactory.createSocket(socket, ((InetSocketAddress) socket.getRemoteSocketAddress()).getHostName(), socket.getPort(), true);
-									sslSocket.setUseClientMode(false);
-									sslSocket.setEnabledProtocols(sslSocket.getSupportedProtocols());
-									sslSocket.setEnabledCipherSuites(sslSocket.getSupportedCipherSuites());
-									sslSocket.startHandshake();
-									if(sslSocket.getSession().getCipherSuite().startsWith("TLS handshake failed"))
-									{
-										throw new TLSNegotiationFailedException(sslSocket.getSession().getCipherSuite());
-									}
-									logger.debug((hostname == null ? socket.getRemoteSocketAddress().toString() : hostname) + " = Cipher suite: " + sslSocket.getSession().getCipherSuite());
-									this.socket = sslSocket;
-									this.writer = new OutputStreamWriter(socket.getOutputStream());
-									this.reset();
-									throw new UpgradeToTLSException();
-								}
-								catch(IOException | TLSNegotiationFailedException e)
-								{
-									logger.info((hostname == null ? socket.getRemoteSocketAddress().toString() : hostname) + " = TLS handshake failed: " + e.getMessage());
-									break;
-								}
-							}
-						}
-						else if(line.toUpperCase().startsWith("MAIL"))
-						{
-							if(!isEncrypted() && server.eventHandler.isEncryptionRequired(this))
-							{
-								write("503 Encryption is required. Send STARTTLS first.");
-							}
-							else if(buildingMail != null)
-							{
-								write("503 You've already sent MAIL.");
-							}
-							else
-							{
-								SMTPAddress sender = null;
-								String[] arr = line.split(" ");
-								int size = 0;
-								for(int i = 1; i < arr.length; i++)
-								{
-									if(arr[i].toUpperCase().startsWith("FROM:<") && arr[i].endsWith(">"))
-									{
-										try
-										{
-											sender = SMTPAddress.fromText(arr[i].substring(6, arr[i].length() - 1));
-										}
-										catch(InvalidAddressException ignored)
-										{
-											write("553 " + arr[i].substring(5) + " is not a valid address.");
-										}
-
-									}
-									else if(arr[i].toUpperCase().startsWith("SIZE="))
-									{
-										try
-										{
-											size = Integer.valueOf(arr[i].substring(5));
-										}
-										catch(NumberFormatException ignored)
-										{
-										}
-									}
-								}
-								if(sender == null)
-								{
-									write("501 Syntax: MAIL FROM:<address>");
-								}
-								else
-								{
-									final int sizeLimit = server.eventHandler.getSizeLimit(this);
-									if(size > 0 && sizeLimit >= 0 && size > sizeLimit)
-									{
-										write("552 I don't accept " + size + "-byte emails.");
-									}
-									else if(server.eventHandler.isSenderAccepted(this, sender))
-									{
-										buildingMail = new SMTPMail();
-										buildingMail.sender = sender;
-										write("250 OK");
-									}
-									else
-									{
-										write("553 You're not allowed to send mail.");
-									}
-								}
-							}
-						}
-						else if(line.toUpperCase().startsWith("RCPT"))
-						{
-							if(buildingMail == null)
-							{
-								write("503 Send MAIL first.");
-							}
-							else
-							{
-								SMTPAddress recipient = null;
-								String[] arr = line.split(" ");
-								for(int i = 1; i < arr.length; i++)
-								{
-									if(arr[i].toUpperCase().startsWith("TO:<") && arr[i].endsWith(">"))
-									{
-										try
-										{
-											recipient = SMTPAddress.fromText(arr[i].substring(4, arr[i].length() - 1));
-										}
-										catch(InvalidAddressException ignored)
-										{
-											write("553 " + arr[i].substring(3) + " is not a valid address.");
-										}
-									}
-								}
-								if(recipient == null)
-								{
-									write("501 Syntax: RCPT TO:<address>");
-								}
-								else if(server.eventHandler.isRecipientAccepted(this, recipient))
-								{
-									buildingMail.recipients.add(recipient);
-									write("250 OK");
-								}
-								else
-								{
-									write("553 Can't deliver to " + recipient.toString());
-								}
-							}
-						}
-						else if(line.toUpperCase().startsWith("VRFY"))
-						{
-							if(server.eventHandler.isVRFYallowed(this))
-							{
-								if(!line.toUpperCase().startsWith("VRFY "))
-								{
-									write("501 Syntax error in parameters or arguments");
-								}
-								try
-								{
-									SMTPAddress address = SMTPAddress.fromText(line.substring(5));
-									if(server.eventHandler.isRecipientAccepted(this, address))
-									{
-										write("250 Can deliver to " + address.toString());
-									}
-									else
-									{
-										write("553 Can't deliver to " + address.toString());
-									}
-								}
-								catch(InvalidAddressException ignored)
-								{
-
-									write("553 " + line.substring(5) + " is not a valid email address.");
-								}
-							}
-							else
-							{
-								write("502 Command not implemented");
-							}
-						}
-						else if(line.toUpperCase().startsWith("DATA"))
-						{
-							if(buildingMail == null)
-							{
-								write("503 Send MAIL first.");
-							}
-							else if(buildingMail.recipients.size() == 0)
-							{
-								write("503 Send RCPT first.");
-							}
-							else
-							{
-								write("354 Start mail input; end with <CRLF>.<CRLF>");
-								writer.flush();
-								boolean headersDefined = false;
-								String lastHeader = null;
-								final StringBuilder body = new StringBuilder();
-								do
-								{
-									String mailLine = scanner.next();
-									logger.debug((hostname == null ? socket.getRemoteSocketAddress().toString() : hostname) + " > " + mailLine);
-									if(!headersDefined)
-									{
-										if(mailLine.contains(":"))
-										{
-											String[] arr = mailLine.split(":");
-											if(arr.length > 1)
-											{
-												lastHeader = arr[0].toLowerCase();
-												buildingMail.headers.put(lastHeader, mailLine.substring(arr[0].length() + 1).trim());
-											}
-											continue;
-										}
-										if(mailLine.length() == 0)
-										{
-											headersDefined = true;
-											continue;
-										}
-										if(lastHeader != null)
-										{
-											buildingMail.headers.put(lastHeader, buildingMail.headers.get(lastHeader) + mailLine.trim());
-										}
-									}
-									if(mailLine.length() > 0 && mailLine.startsWith("."))
-									{
-										if(mailLine.length() == 1)
-										{
-											final String bodystr = body.toString();
-											if(bodystr.equals(""))
-											{
-												write("554 Transaction failed successfully");
-											}
-											else
-											{
-												final int sizeLimit = server.eventHandler.getSizeLimit(this);
-												if(sizeLimit >= 0 && body.length() > sizeLimit)
-												{
-													write("552 Your email is too big.");
-												}
-												else
-												{
-													buildingMail.headers.put("date", SMTPContent.RFC2822.format(new Date()));
-													buildingMail.contents = SMTPContent.from(buildingMail.headers, bodystr);
-													if(sizeLimit >= 0 && buildingMail.getRawContents().length() > sizeLimit)
-													{
-														write("552 Your email is too big.");
-													}
-													else if(server.eventHandler.onMailComposed(this, buildingMail))
-													{
-														write("250 OK");
-													}
-													else
-													{
-														write("554 Failed to deliver mail");
-													}
-												}
-											}
-											buildingMail = null;
-											break;
-										}
-										if(headersDefined)
-										{
-											body.append(mailLine.substring(1)).append("\n");
-										}
-									}
-									else if(headersDefined)
-									{
-										body.append(mailLine).append("\n");
-									}
-								}
-								while(!this.isInterrupted());
-								buildingMail = null;
-							}
-						}
-						else if(line.toUpperCase().startsWith("HELP"))
-						{
-							write("502 Command not implemented");
-						}
-						else
-						{
-							write("500 Command unrecognized");
-						}
-						writer.flush();
-					}
-					while(!this.isInterrupted());
+					buildingMail = new SMTPMail();
+					buildingMail.sender = sender;
+					binaryMIME = "BINARYMIME".equalsIgnoreCase(arguments.parameters.get("BODY"));
+					write(OK);
 				}
-				catch(UpgradeToTLSException ignored)
+				else
 				{
-					continueDo = true;
+					write(SENDER_DENIED);
 				}
+			});
+		}
+	}
+
+	/**
+	 * Takes a token for the client's address and one for the sender's domain from the given rate limiter.
+	 *
+	 * @param limiter The rate limiter.
+	 * @param domain  The sender's domain in lower case.
+	 * @return False if either is over the limit, in which case no token has been taken.
+	 */
+	private boolean acquireRateLimit(SMTPRateLimiter limiter, String domain)
+	{
+		if(!limiter.acquire(getClientInetAddress(), domain))
+		{
+			server.metrics.rateLimited.increment();
+			return false;
+		}
+		return true;
+	}
+
+	private InetAddress getClientInetAddress()
+	{
+		return ((InetSocketAddress) getClientAddress()).getAddress();
+	}
+
+	void rcpt(String argument) throws IOException
+	{
+		trace(SMTPTracePhase.RCPT);
+		if(buildingMail == null)
+		{
+			write(SEND_MAIL_FIRST);
+			return;
+		}
+		final SMTPPathArguments arguments = SMTPPathArguments.parse(argument, "TO:");
+		if(arguments == null)
+		{
+			write(RCPT_SYNTAX);
+			return;
+		}
+		final SMTPAddress recipient;
+		try
+		{
+			recipient = SMTPAddress.fromText(arguments.path);
+		}
+		catch(InvalidAddressException ignored)
+		{
+			write("553 <" + arguments.path + "> is not a valid address.");
+			return;
+		}
+		if(server.maxRecipients >= 0 && buildingMail.recipients.size() >= server.maxRecipients)
+		{
+			server.metrics.rateLimited.increment();
+			write(RECIPIENT_LIMIT);
+			return;
+		}
+		if(server.recipientRateLimiter != null && !acquireRateLimit(server.recipientRateLimiter, buildingMail.sender.getDomain().toLowerCase(Locale.ROOT)))
+		{
+			write(TOO_MANY_RECIPIENTS);
+			return;
+		}
+		await(server.metrics.isRecipientAccepted, System.nanoTime(), server.eventHandler.isRecipientAcceptedAsync(this, recipient), accepted->
+		{
+			if(accepted == null)
+			{
+				write(LOCAL_ERROR);
+			}
+			else if(accepted)
+			{
+				buildingMail.recipients.add(recipient);
+				write(OK);
 			}
-			while(continueDo);
+			else
+			{
+				write("553 Can't deliver to " + recipient.toString());
+			}
+		});
+	}
+
+	void vrfy(String argument) throws IOException
+	{
+		if(!server.eventHandler.isVRFYallowed(this))
+		{
+			write(NOT_IMPLEMENTED);
+			return;
 		}
-		catch(NoSuchElementException ignored)
+		if(argument.length() == 0)
 		{
-			// Connection closed by client
+			write(ARGUMENT_SYNTAX);
+			return;
 		}
-		catch(IOException e)
+		final SMTPAddress address;
+		try
 		{
-			e.printStackTrace();
+			address = SMTPAddress.fromText(argument);
 		}
-		if(!socket.isClosed())
+		catch(InvalidAddressException ignored)
 		{
-			try
+			write("553 " + argument + " is not a valid email address.");
+			return;
+		}
+		await(server.metrics.isRecipientAccepted, System.nanoTime(), server.eventHandler.isRecipientAcceptedAsync(this, address), accepted->
+		{
+			if(accepted == null)
 			{
-				socket.close();
+				write(LOCAL_ERROR);
 			}
-			catch(IOException e)
+			else if(accepted)
+			{
+				write("250 Can deliver to " + address.toString());
+			}
+			else
 			{
-				e.printStackTrace();
+				write("553 Can't deliver to " + address.toString());
 			}
+		});
+	}
+
+	void data(String argument) throws IOException
+	{
+		if(buildingMail == null)
+		{
+			write(SEND_MAIL_FIRST);
+		}
+		else if(buildingMail.recipients.size() == 0)
+		{
+			write(SEND_RCPT_FIRST);
+		}
+		else if(message != null || streaming || binaryMIME)
+		{
+			write(BDAT_REQUIRED);
+		}
+		else if(isOutOfMemoryBudget())
+		{
+			write(INSUFFICIENT_STORAGE);
 		}
-		synchronized(server.sessions)
+		else
 		{
-			server.sessions.remove(this);
+			write(START_MAIL_INPUT);
+			beginMessage();
+			receivingData = true;
 		}
 	}
 
-	public void close()
+	void bdat(String argument) throws IOException
 	{
-		this.close(null);
+		final int space = argument.indexOf(' ');
+		final long size = SMTPPathArguments.parseNumber(space == -1 ? argument : argument.substring(0, space));
+		if(size < 0 || (space != -1 && !argument.substring(space + 1).equalsIgnoreCase("LAST")))
+		{
+			// Without a valid size, the chunk can't be told apart from the commands following it.
+			write(BDAT_SYNTAX);
+			closed = true;
+			return;
+		}
+		chunkRemaining = size;
+		chunkLast = (space != -1);
+		if(buildingMail == null)
+		{
+			chunkError = SEND_MAIL_FIRST;
+		}
+		else if(buildingMail.recipients.size() == 0)
+		{
+			chunkError = SEND_RCPT_FIRST;
+		}
+		else if(message == null && !streaming && isOutOfMemoryBudget())
+		{
+			// The transaction ends here, so later chunks can't form a mail that lacks this one.
+			chunkError = INSUFFICIENT_STORAGE;
+			buildingMail = null;
+		}
+		else
+		{
+			chunkError = null;
+			if(message == null && !streaming)
+			{
+				beginMessage();
+			}
+		}
+		if(size == 0)
+		{
+			endChunk();
+		}
 	}
 
-	public void close(String message)
+	private void endChunk() throws IOException
 	{
-		if(message != null)
+		if(chunkError != null)
+		{
+			write(chunkError);
+			chunkError = null;
+		}
+		else if(chunkLast)
+		{
+			endMessage();
+		}
+		else
+		{
+			write("250 " + messageSize + " bytes received");
+		}
+	}
+
+	void help(String argument) throws IOException
+	{
+		write(NOT_IMPLEMENTED);
+	}
+
+	private void handleDataLine(SMTPLineDecoder decoder) throws IOException
+	{
+		final byte[] arr = decoder.array();
+		int offset = decoder.lineOffset;
+		int length = decoder.lineLength;
+		if(decoder.lineTooLong)
+		{
+			messageLineTooLong = true;
+			return;
+		}
+		if(length > 0 && arr[offset] == '.')
+		{
+			if(length == 1)
+			{
+				receivingData = false;
+				commandStart = System.nanoTime();
+				endMessage();
+				return;
+			}
+			offset++;
+			length--;
+		}
+		if(!messageLineTooLong)
+		{
+			// The CRLF that ended the line is still right behind it in the decoder's buffer.
+			appendMessage(arr, offset, length + 2);
+		}
+	}
+
+	/**
+	 * Returns whether a new mail would have to be refused because the server's memory budget is exhausted and mails can't be spooled to disk.
+	 *
+	 * @return whether a new mail would have to be refused.
+	 */
+	private boolean isOutOfMemoryBudget()
+	{
+		return server.spoolThreshold < 0 && server.memoryBudget.isExhausted();
+	}
+
+	private void beginMessage()
+	{
+		trace(SMTPTracePhase.DATA_START);
+		messageLineTooLong = false;
+		messageSpoolFailed = false;
+		messageTooBig = false;
+		messageOverBudget = false;
+		messageSize = 0;
+		messageSizeLimit = server.eventHandler.getSizeLimit(this);
+		final long start = System.nanoTime();
+		streaming = server.eventHandler.onDataStart(this, buildingMail);
+		server.metrics.onDataStart.record(System.nanoTime() - start);
+		if(!streaming)
+		{
+			message = new SMTPSpool(server.spoolDirectory, server.spoolThreshold, server.memoryBudget);
+		}
+	}
+
+	private void appendMessage(byte[] data, int offset, int length)
+	{
+		messageSize += length;
+		if(messageTooBig)
+		{
+			return;
+		}
+		if(messageSizeLimit >= 0 && messageSize > messageSizeLimit)
+		{
+			// Stop buffering right away, the rest of the mail is only drained until it ends.
+			messageTooBig = true;
+			if(message != null)
+			{
+				message.discard();
+			}
+			if(streaming)
+			{
+				server.eventHandler.onDataAborted(this, buildingMail);
+			}
+			return;
+		}
+		if(streaming)
+		{
+			final long start = System.nanoTime();
+			server.eventHandler.onData(this, buildingMail, data, offset, length);
+			server.metrics.onData.record(System.nanoTime() - start);
+		}
+		else if(!messageSpoolFailed && !messageOverBudget)
 		{
 			try
 			{
-				write("421 Shutting down.");
-				writer.flush();
+				if(!message.write(data, offset, length))
+				{
+					messageOverBudget = true;
+					message.discard();
+				}
 			}
-			catch(IOException ignored)
+			catch(IOException e)
 			{
+				logger.warn("Failed to spool mail: " + e.getMessage());
+				messageSpoolFailed = true;
+			}
+		}
+	}
 
+	/**
+	 * Discards the raw mail of the current transaction and tells the event handler if it was being streamed the mail, e.g. because the connection has been lost.
+	 */
+	void abortMessage()
+	{
+		if(message != null)
+		{
+			message.discard();
+			message = null;
+		}
+		if(streaming)
+		{
+			streaming = false;
+			if(!messageTooBig)
+			{
+				server.eventHandler.onDataAborted(this, buildingMail);
 			}
 		}
-		try
+	}
+
+	/**
+	 * Parses the header section of a raw mail into the given map.
+	 *
+	 * @param raw     The raw mail.
+	 * @param headers The map to put the headers into.
+	 * @return The offset of the body, or the length of the raw mail if it has no body.
+	 */
+	private static int parseHeaders(ByteBuffer raw, HashMap<String, String> headers)
+	{
+		final int length = raw.limit();
+		String lastHeader = null;
+		int start = 0;
+		for(int i = 1; i < length; i++)
 		{
-			writer.close();
+			if(raw.get(i - 1) != '\r' || raw.get(i) != '\n')
+			{
+				continue;
+			}
+			if(i - 1 == start)
+			{
+				return i + 1;
+			}
+			final byte[] bytes = new byte[i - 1 - start];
+			for(int j = 0; j < bytes.length; j++)
+			{
+				bytes[j] = raw.get(start + j);
+			}
+			final String line = new String(bytes, Charset.defaultCharset());
+			start = i + 1;
+			if(line.contains(":"))
+			{
+				String[] arr = line.split(":");
+				if(arr.length > 1)
+				{
+					lastHeader = arr[0].toLowerCase();
+					headers.put(lastHeader, line.substring(arr[0].length() + 1).trim());
+				}
+			}
+			else if(lastHeader != null)
+			{
+				headers.put(lastHeader, headers.get(lastHeader) + line.trim());
+			}
 		}
-		catch(IOException ignored)
+		return length;
+	}
+
+	private void endMessage() throws IOException
+	{
+		trace(SMTPTracePhase.LAST_BYTE);
+		endingMessage = true;
+		if(messageLineTooLong)
+		{
+			abortMessage();
+			write(LINE_TOO_LONG);
+		}
+		else if(messageTooBig)
+		{
+			abortMessage();
+			write(TOO_BIG);
+		}
+		else if(messageOverBudget)
+		{
+			abortMessage();
+			write(INSUFFICIENT_STORAGE);
+		}
+		else if(streaming)
+		{
+			endStreamedMessage();
+		}
+		else
+		{
+			endBufferedMessage();
+		}
+		buildingMail = null;
+	}
+
+	private void endBufferedMessage() throws IOException
+	{
+		final SMTPSpool spool = message;
+		message = null;
+		final ByteBuffer raw;
+		if(messageSpoolFailed || (raw = finishSpool(spool)) == null)
 		{
+			spool.discard();
+			write(LOCAL_ERROR);
+			return;
 		}
+		final SMTPMail mail = buildingMail;
+		if(parseHeaders(raw, mail.headers) == raw.limit())
+		{
+			spool.discard();
+			write(EMPTY_MAIL);
+			return;
+		}
+		mail.headers.put("date", SMTPContent.RFC2822.format(new Date()));
+		// The contents are only parsed once the event handler asks for them.
+		mail.rawMessage = raw;
+		await(server.metrics.onMailComposed, System.nanoTime(), server.eventHandler.onMailComposedAsync(this, mail), delivered->
+		{
+			trace(SMTPTracePhase.HANDLER_RETURNED);
+			spool.discard();
+			if(delivered == null)
+			{
+				write(LOCAL_ERROR);
+			}
+			else if(delivered)
+			{
+				write(OK);
+			}
+			else
+			{
+				write(DELIVERY_FAILED);
+			}
+		});
+	}
+
+	private static ByteBuffer finishSpool(SMTPSpool spool)
+	{
 		try
 		{
-			socket.close();
+			return spool.finish();
 		}
-		catch(IOException ignored)
+		catch(IOException e)
 		{
+			logger.warn("Failed to spool mail: " + e.getMessage());
+			return null;
 		}
-		if(scanner != null)
+	}
+
+	private void endStreamedMessage() throws IOException
+	{
+		if(messageSize == 0)
 		{
-			scanner.close();
+			abortMessage();
+			write(EMPTY_MAIL);
+			return;
 		}
-		this.interrupt();
+		streaming = false;
+		await(server.metrics.onDataEnd, System.nanoTime(), server.eventHandler.onDataEndAsync(this, buildingMail), code->
+		{
+			trace(SMTPTracePhase.HANDLER_RETURNED);
+			if(code == null)
+			{
+				write(LOCAL_ERROR);
+			}
+			else if(code == 250)
+			{
+				write(OK);
+			}
+			else
+			{
+				write(code + (code < 400 ? " OK" : " Failed to deliver mail"));
+			}
+		});
 	}
 
-	public boolean isOpen()
+	public void close()
 	{
-		return !socket.isClosed();
+		this.close(null);
 	}
 
-	public boolean isEncrypted()
+	public void close(String message)
+	{
+		if(message != null)
+		{
+			try
+			{
+				write(SHUTTING_DOWN);
+				flush();
+			}
+			catch(IOException ignored)
+			{
+
+			}
+		}
+		closed = true;
+		closeTransport();
+	}
+
+	public abstract boolean isOpen();
+
+	public abstract boolean isEncrypted();
+
+	/**
+	 * The rest of a command that waits for an event handler hook.
+	 *
+	 * @param <T> The type of the hook's result.
+	 */
+	@FunctionalInterface
+	interface HookContinuation<T>
 	{
-		return (socket instanceof SSLSocket);
+		/**
+		 * @param result The result of the hook, or null if it failed or timed out, which is answered with 451.
+		 * @throws IOException When writing a reply fails.
+		 */
+		void resume(T result) throws IOException;
 	}
 }
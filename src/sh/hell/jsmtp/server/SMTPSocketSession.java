@@ -0,0 +1,276 @@
+package sh.hell.jsmtp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sh.hell.jsmtp.exceptions.TLSNegotiationFailedException;
+
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+
+/**
+ * An SMTPSession on a blocking socket, run by the server's session Executor.
+ */
+class SMTPSocketSession extends SMTPSession implements Runnable
+{
+	private static final Logger logger = LoggerFactory.getLogger(SMTPSocketSession.class);
+	private final SMTPLineDecoder decoder;
+	/**
+	 * The plain socket of the session, which stays the same after STARTTLS.
+	 */
+	private final Socket rawSocket;
+	private Socket socket;
+	/**
+	 * True while the session's thread is blocked reading from its client.
+	 */
+	private volatile boolean blocked = false;
+	/**
+	 * The reply to send once the session's thread has been woken up to close the session, or null.
+	 */
+	private volatile byte[] farewell;
+	private InputStream in;
+	private OutputStream out;
+
+	SMTPSocketSession(SMTPServer server, Socket socket, SMTPTLSMode tlsMode) throws IOException
+	{
+		super(server, tlsMode);
+		this.decoder = new SMTPLineDecoder(server.maxLineLength);
+		this.rawSocket = socket;
+		this.socket = socket;
+		this.in = socket.getInputStream();
+		this.out = new BufferedOutputStream(socket.getOutputStream());
+	}
+
+	@Override
+	void send(byte[] data, int offset, int length) throws IOException
+	{
+		out.write(data, offset, length);
+	}
+
+	@Override
+	void flush() throws IOException
+	{
+		out.flush();
+		flushed();
+	}
+
+	@Override
+	void startTLS() throws IOException, TLSNegotiationFailedException
+	{
+		startTLS(null);
+	}
+
+	/**
+	 * @param consumed The beginning of the handshake if it has already been read from the socket, e.g. along with a PROXY protocol header, or null.
+	 */
+	private void startTLS(byte[] consumed) throws IOException, TLSNegotiationFailedException
+	{
+		final SSLSocket sslSocket = (SSLSocket) (consumed == null ? server.sslSocketFactory.createSocket(socket, ((InetSocketAddress) socket.getRemoteSocketAddress()).getHostString(), socket.getPort(), true) : server.sslSocketFactory.createSocket(socket, new ByteArrayInputStream(consumed), true));
+		sslSocket.setUseClientMode(false);
+		server.tlsProfile.configure(sslSocket);
+		trace(SMTPTracePhase.TLS_HANDSHAKE_START);
+		try
+		{
+			sslSocket.startHandshake();
+		}
+		catch(IOException e)
+		{
+			server.metrics.failedTLSHandshakes.increment();
+			throw e;
+		}
+		if(sslSocket.getSession().getCipherSuite().startsWith("TLS handshake failed"))
+		{
+			server.metrics.failedTLSHandshakes.increment();
+			throw new TLSNegotiationFailedException(sslSocket.getSession().getCipherSuite());
+		}
+		server.metrics.tlsHandshakes.increment();
+		trace(SMTPTracePhase.TLS_HANDSHAKE_END);
+		if(logger.isDebugEnabled())
+		{
+			logger.debug((hostname == null ? socket.getRemoteSocketAddress().toString() : hostname) + " = Cipher suite: " + sslSocket.getSession().getCipherSuite());
+		}
+		this.socket = sslSocket;
+		this.in = socket.getInputStream();
+		this.out = new BufferedOutputStream(socket.getOutputStream());
+		this.decoder.clear();
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			startTimeout();
+			while(proxyHeader != null && !closed && !handleProxyHeader(decoder))
+			{
+				final int read = decoder.fill(in);
+				if(read < 0)
+				{
+					closed = true;
+				}
+				else
+				{
+					countReceived(read);
+				}
+			}
+			if(tlsMode == SMTPTLSMode.IMPLICIT && !closed)
+			{
+				try
+				{
+					// Whatever followed the PROXY protocol header is the beginning of the handshake.
+					startTLS(decoder.nextBytes(Integer.MAX_VALUE) ? Arrays.copyOfRange(decoder.array(), decoder.lineOffset, decoder.lineOffset + decoder.lineLength) : null);
+				}
+				catch(IOException | TLSNegotiationFailedException e)
+				{
+					logger.info(socket.getRemoteSocketAddress().toString() + " = TLS handshake failed: " + e.getMessage());
+					closed = true;
+				}
+			}
+			if(!closed)
+			{
+				greet();
+			}
+			while(!closed)
+			{
+				if(handleInput(decoder))
+				{
+					continue;
+				}
+				// Only flush once all pipelined commands have been answered.
+				flush();
+				blocked = true;
+				if(server.draining && !inTransaction())
+				{
+					farewell = SHUTTING_DOWN;
+					break;
+				}
+				final int read = decoder.fill(in);
+				blocked = false;
+				if(read < 0)
+				{
+					// Connection closed by client
+					break;
+				}
+				countReceived(read);
+			}
+			flush();
+		}
+		catch(IOException e)
+		{
+			if(!closed)
+			{
+				e.printStackTrace();
+			}
+		}
+		final byte[] farewell = this.farewell;
+		// A client that is still in the implicit TLS handshake can't be sent a reply.
+		if(farewell != null && (tlsMode != SMTPTLSMode.IMPLICIT || isEncrypted()))
+		{
+			try
+			{
+				write(farewell);
+				out.flush();
+			}
+			catch(IOException ignored)
+			{
+			}
+		}
+		if(!socket.isClosed())
+		{
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		abortMessage();
+		server.sessionEnded(this);
+	}
+
+	/**
+	 * Ends the blocking read of the session's thread, which then answers with 421 and closes the session.
+	 */
+	@Override
+	void timedOut()
+	{
+		wake(TIMED_OUT);
+	}
+
+	/**
+	 * Ends the blocking read of the session's thread if it is waiting for a command outside of a mail transaction; otherwise, the thread checks for itself once it is.
+	 */
+	@Override
+	void drain()
+	{
+		if(blocked && !inTransaction())
+		{
+			wake(SHUTTING_DOWN);
+		}
+	}
+
+	private void wake(byte[] farewell)
+	{
+		this.farewell = farewell;
+		closed = true;
+		try
+		{
+			rawSocket.shutdownInput();
+		}
+		catch(IOException ignored)
+		{
+		}
+	}
+
+	@Override
+	void closeTransport()
+	{
+		try
+		{
+			out.close();
+		}
+		catch(IOException ignored)
+		{
+		}
+		try
+		{
+			socket.close();
+		}
+		catch(IOException ignored)
+		{
+		}
+	}
+
+	@Override
+	SocketAddress getRemoteSocketAddress()
+	{
+		return socket.getRemoteSocketAddress();
+	}
+
+	@Override
+	boolean isTLSAvailable()
+	{
+		return tlsMode == SMTPTLSMode.STARTTLS && server.sslSocketFactory != null;
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return !socket.isClosed();
+	}
+
+	@Override
+	public boolean isEncrypted()
+	{
+		return (socket instanceof SSLSocket);
+	}
+}
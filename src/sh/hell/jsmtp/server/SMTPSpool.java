@@ -0,0 +1,215 @@
+package sh.hell.jsmtp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Buffers the raw mail of a transaction in memory until it exceeds the server's spool threshold or memory budget, and in a temporary spool file after that.
+ * The spool file is deleted once the spool is discarded, but a memory-mapped view of it stays valid until it is garbage-collected.
+ * The memory buffer only grows when more of the budget has been reserved, to exactly the reserved size, so the budget counts what the buffer really takes up.
+ */
+class SMTPSpool
+{
+	private static final int FILE_BUFFER_SIZE = 65536;
+	private static final long MAX_CAPACITY = Integer.MAX_VALUE / SMTPMemoryBudget.STEP * SMTPMemoryBudget.STEP;
+	private final File directory;
+	private final long threshold;
+	private final SMTPMemoryBudget budget;
+	private MemoryBuffer memory = new MemoryBuffer();
+	private FileChannel file;
+	private ByteBuffer fileBuffer;
+	private long size = 0;
+	/**
+	 * The number of bytes reserved from the budget, which is the capacity of the memory buffer.
+	 */
+	private long reserved = 0;
+
+	/**
+	 * @param directory The directory to create the spool file in, or null for the default temporary-file directory.
+	 * @param threshold The number of bytes to keep in memory, or -1 to never spool to disk.
+	 * @param budget    The memory budget of the server.
+	 */
+	SMTPSpool(File directory, long threshold, SMTPMemoryBudget budget)
+	{
+		this.directory = directory;
+		this.threshold = threshold;
+		this.budget = budget;
+	}
+
+	long size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return False if the bytes don't fit into the memory budget and can't be spooled to disk, in which case the spool has to be discarded.
+	 */
+	boolean write(byte[] data, int offset, int length) throws IOException
+	{
+		size += length;
+		if(file == null)
+		{
+			if(threshold < 0 || size <= threshold)
+			{
+				if(size <= reserved || reserve())
+				{
+					memory.write(data, offset, length);
+					return true;
+				}
+				if(threshold < 0)
+				{
+					return false;
+				}
+				// The memory budget is exhausted, so the mail goes to disk before reaching the threshold.
+			}
+			final Path path = (directory == null ? Files.createTempFile("jsmtp", ".eml") : Files.createTempFile(directory.toPath(), "jsmtp", ".eml"));
+			file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+			fileBuffer = ByteBuffer.allocate(FILE_BUFFER_SIZE);
+			final MemoryBuffer buffered = memory;
+			memory = null;
+			budget.release(reserved);
+			reserved = 0;
+			buffered.appendTo(this);
+		}
+		append(data, offset, length);
+		return true;
+	}
+
+	/**
+	 * Grows the memory buffer to fit the current size, doubling it where the budget and the threshold allow, so big mails aren't copied once per step.
+	 *
+	 * @return False if the budget doesn't even have room for the current size.
+	 */
+	private boolean reserve()
+	{
+		final long needed = roundUp(size) - reserved;
+		if(reserved + needed > MAX_CAPACITY)
+		{
+			return false;
+		}
+		long step = Math.min(Math.max(needed, reserved), MAX_CAPACITY - reserved);
+		if(threshold >= 0)
+		{
+			step = Math.max(needed, Math.min(step, roundUp(threshold) - reserved));
+		}
+		if(!budget.reserve(step))
+		{
+			if(step == needed || !budget.reserve(needed))
+			{
+				return false;
+			}
+			step = needed;
+		}
+		reserved += step;
+		memory.resize((int) reserved);
+		return true;
+	}
+
+	private static long roundUp(long bytes)
+	{
+		return (bytes + SMTPMemoryBudget.STEP - 1) / SMTPMemoryBudget.STEP * SMTPMemoryBudget.STEP;
+	}
+
+	private void append(byte[] data, int offset, int length) throws IOException
+	{
+		while(length > 0)
+		{
+			if(!fileBuffer.hasRemaining())
+			{
+				flushFileBuffer();
+			}
+			final int chunk = Math.min(length, fileBuffer.remaining());
+			fileBuffer.put(data, offset, chunk);
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	private void flushFileBuffer() throws IOException
+	{
+		fileBuffer.flip();
+		while(fileBuffer.hasRemaining())
+		{
+			file.write(fileBuffer);
+		}
+		fileBuffer.clear();
+	}
+
+	/**
+	 * Returns a read-only view of everything that has been written, which is memory-mapped if the spool file is in use.
+	 *
+	 * @return The view.
+	 * @throws IOException When the spool file can't be written or mapped.
+	 */
+	ByteBuffer finish() throws IOException
+	{
+		if(file == null)
+		{
+			return memory.view();
+		}
+		flushFileBuffer();
+		return file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	}
+
+	/**
+	 * Deletes the spool file, if any, and returns the memory to the budget.
+	 */
+	void discard()
+	{
+		memory = null;
+		budget.release(reserved);
+		reserved = 0;
+		if(file != null)
+		{
+			try
+			{
+				file.close();
+			}
+			catch(IOException ignored)
+			{
+			}
+			file = null;
+		}
+	}
+
+	/**
+	 * A ByteArrayOutputStream that hands out its buffer instead of copies of it.
+	 */
+	private static class MemoryBuffer extends ByteArrayOutputStream
+	{
+		MemoryBuffer()
+		{
+			super(0);
+		}
+
+		/**
+		 * Sets the capacity of the buffer, which is briefly held twice while it is being copied.
+		 *
+		 * @param capacity The capacity, which has to fit what has been written.
+		 */
+		void resize(int capacity)
+		{
+			buf = Arrays.copyOf(buf, capacity);
+		}
+
+		/**
+		 * @return A read-only view of the written bytes, sharing the buffer.
+		 */
+		ByteBuffer view()
+		{
+			return ByteBuffer.wrap(buf, 0, count).slice().asReadOnlyBuffer();
+		}
+
+		void appendTo(SMTPSpool spool) throws IOException
+		{
+			spool.append(buf, 0, count);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package sh.hell.jsmtp.server;
+
+/**
+ * How a port of an SMTPServer uses TLS.
+ */
+public enum SMTPTLSMode
+{
+	/**
+	 * No TLS; STARTTLS is not offered.
+	 */
+	PLAIN,
+	/**
+	 * Sessions start in plaintext and may upgrade to TLS using STARTTLS, as on ports 25 and 587.
+	 */
+	STARTTLS,
+	/**
+	 * Sessions start with a TLS handshake before the greeting, as on port 465 (RFC 8314).
+	 */
+	IMPLICIT
+}
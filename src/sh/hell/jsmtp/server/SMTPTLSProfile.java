@@ -0,0 +1,183 @@
+package sh.hell.jsmtp.server;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TLS configuration of an SMTPServer's sessions, computed once and applied to every SSLSocket or SSLEngine as a whole.
+ * Only TLS 1.3 and 1.2 are enabled, and cipher suites are ordered AEAD first, with the server's order taking precedence over the client's.
+ * Session tickets (RFC 5077) aren't part of the profile, because the JDK only controls them for the whole JVM, using the system property jdk.tls.server.enableSessionTicketExtension, which has to be set on the command line to take effect.
+ */
+@SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
+public class SMTPTLSProfile
+{
+	private static final String[] PROTOCOLS = new String[]{"TLSv1.3", "TLSv1.2"};
+	private static final String[] WEAK = new String[]{"_anon_", "_NULL_", "_RC4_", "_3DES_", "_DES_", "_DES40_", "_EXPORT", "_MD5"};
+	public final String[] protocols;
+	public final String[] cipherSuites;
+	private final SSLParameters parameters;
+	int sessionCacheSize = -1;
+	int sessionTimeout = -1;
+
+	/**
+	 * @param supportedProtocols    The protocols supported by the TLS implementation.
+	 * @param supportedCipherSuites The cipher suites supported by the TLS implementation.
+	 * @param aeadOnly              True to only enable AEAD cipher suites, false to also enable CBC suites with forward secrecy after them for older clients.
+	 */
+	public SMTPTLSProfile(String[] supportedProtocols, String[] supportedCipherSuites, boolean aeadOnly)
+	{
+		final ArrayList<String> protocols = new ArrayList<>();
+		for(String protocol : PROTOCOLS)
+		{
+			if(Arrays.asList(supportedProtocols).contains(protocol))
+			{
+				protocols.add(protocol);
+			}
+		}
+		final ArrayList<String> cipherSuites = new ArrayList<>();
+		for(String cipherSuite : supportedCipherSuites)
+		{
+			final int rank = rank(cipherSuite);
+			if(rank >= 0 && (!aeadOnly || rank < 4 || rank == 5))
+			{
+				cipherSuites.add(cipherSuite);
+			}
+		}
+		// The sort is stable, so suites of the same rank keep the order of the TLS implementation.
+		cipherSuites.sort(Comparator.comparingInt(SMTPTLSProfile::rank));
+		this.protocols = protocols.toArray(new String[0]);
+		this.cipherSuites = cipherSuites.toArray(new String[0]);
+		this.parameters = new SSLParameters(this.cipherSuites, this.protocols);
+		this.parameters.setUseCipherSuitesOrder(true);
+	}
+
+	/**
+	 * Creates a profile for the given SSLContext.
+	 *
+	 * @param sslContext The SSLContext.
+	 * @param aeadOnly   True to only enable AEAD cipher suites.
+	 * @return The profile.
+	 */
+	public static SMTPTLSProfile of(SSLContext sslContext, boolean aeadOnly)
+	{
+		final SSLParameters supported = sslContext.getSupportedSSLParameters();
+		return new SMTPTLSProfile(supported.getProtocols(), supported.getCipherSuites(), aeadOnly);
+	}
+
+	/**
+	 * Creates a profile for the given SSLSocketFactory.
+	 *
+	 * @param sslSocketFactory The SSLSocketFactory.
+	 * @param aeadOnly         True to only enable AEAD cipher suites.
+	 * @return The profile.
+	 */
+	public static SMTPTLSProfile of(SSLSocketFactory sslSocketFactory, boolean aeadOnly)
+	{
+		String[] supportedProtocols;
+		try(SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket())
+		{
+			supportedProtocols = socket.getSupportedProtocols();
+		}
+		catch(IOException | UnsupportedOperationException ignored)
+		{
+			supportedProtocols = PROTOCOLS;
+		}
+		return new SMTPTLSProfile(supportedProtocols, sslSocketFactory.getSupportedCipherSuites(), aeadOnly);
+	}
+
+	/**
+	 * Ranks a cipher suite by how much it is preferred, lower being better.
+	 *
+	 * @param cipherSuite The name of the cipher suite.
+	 * @return The rank, or -1 if the cipher suite must not be used.
+	 */
+	private static int rank(String cipherSuite)
+	{
+		if(cipherSuite.equals("TLS_EMPTY_RENEGOTIATION_INFO_SCSV"))
+		{
+			// Not a cipher suite, but a signal that secure renegotiation is supported.
+			return 5;
+		}
+		for(String weak : WEAK)
+		{
+			if(cipherSuite.contains(weak))
+			{
+				return -1;
+			}
+		}
+		if(cipherSuite.startsWith("TLS_AES_") || cipherSuite.startsWith("TLS_CHACHA20_"))
+		{
+			return 0;
+		}
+		final boolean aead = (cipherSuite.contains("_GCM_") || cipherSuite.contains("_CHACHA20_POLY1305_") || cipherSuite.contains("_CCM"));
+		final boolean forwardSecret = (cipherSuite.startsWith("TLS_ECDHE_") || cipherSuite.startsWith("TLS_DHE_"));
+		if(aead)
+		{
+			return (forwardSecret ? (cipherSuite.startsWith("TLS_ECDHE_") ? 1 : 2) : 3);
+		}
+		return (forwardSecret ? 4 : -1);
+	}
+
+	/**
+	 * Sets the number of sessions the server keeps for resumption. Use 0 for no limit. By default, the TLS implementation's default is kept.
+	 * This only applies to servers with an SSLContext.
+	 *
+	 * @param sessionCacheSize The number of sessions.
+	 * @return this
+	 */
+	public SMTPTLSProfile setSessionCacheSize(int sessionCacheSize)
+	{
+		this.sessionCacheSize = sessionCacheSize;
+		return this;
+	}
+
+	/**
+	 * Sets how long sessions can be resumed for. Use 0 for no limit. By default, the TLS implementation's default is kept.
+	 * This only applies to servers with an SSLContext.
+	 *
+	 * @param timeout The timeout.
+	 * @param unit    The unit of the timeout.
+	 * @return this
+	 */
+	public SMTPTLSProfile setSessionTimeout(long timeout, TimeUnit unit)
+	{
+		this.sessionTimeout = (int) unit.toSeconds(timeout);
+		return this;
+	}
+
+	public void configure(SSLSocket socket)
+	{
+		socket.setSSLParameters(parameters);
+	}
+
+	public void configure(SSLEngine engine)
+	{
+		engine.setSSLParameters(parameters);
+	}
+
+	/**
+	 * Applies the session cache settings to the given server session context.
+	 *
+	 * @param sessionContext The session context.
+	 */
+	public void configure(SSLSessionContext sessionContext)
+	{
+		if(sessionCacheSize >= 0)
+		{
+			sessionContext.setSessionCacheSize(sessionCacheSize);
+		}
+		if(sessionTimeout >= 0)
+		{
+			sessionContext.setSessionTimeout(sessionTimeout);
+		}
+	}
+}
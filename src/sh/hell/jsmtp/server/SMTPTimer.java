@@ -0,0 +1,200 @@
+package sh.hell.jsmtp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel that enforces the timeouts of all sessions of a server on a single thread.
+ * Moving a deadline later is a single volatile write; the wheel only notices when it comes across the timeout and puts it back into the bucket of its new deadline.
+ * Moving it earlier, or setting one while it has none, puts the timeout on the wheel again, leaving a stale entry behind that is skipped once it comes up.
+ */
+class SMTPTimer extends Thread
+{
+	private static final Logger logger = LoggerFactory.getLogger(SMTPTimer.class);
+	private static final int WHEEL_SIZE = 512;
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(100);
+	@SuppressWarnings("unchecked")
+	private final ArrayList<Timeout>[] wheel = (ArrayList<Timeout>[]) new ArrayList<?>[WHEEL_SIZE];
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final long startTime = System.nanoTime();
+	private long tick = 0;
+	private volatile boolean stopped = false;
+
+	SMTPTimer()
+	{
+		super("SMTPTimer");
+		for(int i = 0; i < WHEEL_SIZE; i++)
+		{
+			wheel[i] = new ArrayList<>();
+		}
+		this.setDaemon(true);
+		this.start();
+	}
+
+	/**
+	 * Adds the given timeout to the wheel. This can be called from any thread.
+	 *
+	 * @param timeout The timeout.
+	 */
+	void schedule(Timeout timeout)
+	{
+		added.add(timeout);
+	}
+
+	/**
+	 * Moves the deadline of the given timeout, putting it back on the wheel if it would otherwise be noticed too late. This can be called from any thread.
+	 *
+	 * @param timeout  The timeout.
+	 * @param deadline The System.nanoTime at which the timeout expires, or 0 to take it off the wheel until a deadline is set again.
+	 */
+	void move(Timeout timeout, long deadline)
+	{
+		timeout.deadline = deadline;
+		final long scheduled = timeout.scheduled;
+		if(deadline != 0 && (scheduled == 0 || deadline - scheduled < 0))
+		{
+			added.add(timeout);
+		}
+	}
+
+	/**
+	 * Schedules the given task to run on the timer's thread after the given delay.
+	 *
+	 * @param task  The task.
+	 * @param delay The delay in milliseconds.
+	 * @return The timeout, which can be cancelled.
+	 */
+	Timeout schedule(Runnable task, long delay)
+	{
+		final Timeout timeout = new Timeout()
+		{
+			@Override
+			void expired()
+			{
+				task.run();
+			}
+		};
+		timeout.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		schedule(timeout);
+		return timeout;
+	}
+
+	void shutdown()
+	{
+		stopped = true;
+		LockSupport.unpark(this);
+	}
+
+	@Override
+	public void run()
+	{
+		while(!stopped)
+		{
+			final long now = System.nanoTime();
+			final long nextTick = startTime + (tick + 1) * TICK;
+			if(nextTick - now > 0)
+			{
+				LockSupport.parkNanos(this, nextTick - now);
+				continue;
+			}
+			tick++;
+			Timeout timeout;
+			while((timeout = added.poll()) != null)
+			{
+				insert(timeout, now);
+			}
+			final ArrayList<Timeout> bucket = wheel[(int) (tick % WHEEL_SIZE)];
+			if(bucket.isEmpty())
+			{
+				continue;
+			}
+			final Timeout[] due = bucket.toArray(new Timeout[0]);
+			bucket.clear();
+			for(Timeout t : due)
+			{
+				if(t.cancelled || t.due < tick || (t.due - tick) % WHEEL_SIZE != 0)
+				{
+					// Stale entries of timeouts that have been put on the wheel again are dropped.
+					continue;
+				}
+				if(t.due > tick)
+				{
+					bucket.add(t);
+					continue;
+				}
+				final long deadline = t.deadline;
+				if(deadline == 0 || deadline - now > 0)
+				{
+					insert(t, now);
+					continue;
+				}
+				t.due = -1;
+				t.scheduled = 0;
+				try
+				{
+					t.expired();
+				}
+				catch(RuntimeException e)
+				{
+					logger.error("Timeout task failed", e);
+				}
+			}
+		}
+	}
+
+	private void insert(Timeout timeout, long now)
+	{
+		long deadline = timeout.deadline;
+		while(true)
+		{
+			// Publishes the deadline before reading it again, so a concurrent move either sees it or is seen here.
+			timeout.scheduled = deadline;
+			final long moved = timeout.deadline;
+			if(moved == deadline)
+			{
+				break;
+			}
+			deadline = moved;
+		}
+		if(deadline == 0)
+		{
+			// Without a deadline, the timeout stays off the wheel until move() sets one.
+			timeout.due = -1;
+			return;
+		}
+		timeout.due = tick + Math.max(1, (deadline - now + TICK - 1) / TICK);
+		wheel[(int) (timeout.due % WHEEL_SIZE)].add(timeout);
+	}
+
+	abstract static class Timeout
+	{
+		/**
+		 * The System.nanoTime at which the timeout expires, or 0 if it currently has no deadline.
+		 */
+		volatile long deadline = 0;
+		/**
+		 * The deadline the timeout has been put on the wheel with, or 0 if it isn't on the wheel.
+		 */
+		volatile long scheduled = 0;
+		volatile boolean cancelled = false;
+		/**
+		 * The tick at which the timeout is due, or -1 if it isn't on the wheel, only accessed by the timer's thread.
+		 */
+		long due = -1;
+
+		void cancel()
+		{
+			cancelled = true;
+		}
+
+		/**
+		 * Called on the timer's thread once the deadline has passed. To be called again, the timeout has to be scheduled again.
+		 */
+		abstract void expired();
+	}
+}
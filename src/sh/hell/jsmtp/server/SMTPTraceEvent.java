@@ -0,0 +1,36 @@
+package sh.hell.jsmtp.server;
+
+/**
+ * A phase of a session, as passed to an {@link SMTPTraceListener}.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class SMTPTraceEvent
+{
+	public SMTPTracePhase phase;
+	/**
+	 * The {@link SMTPSession#id} of the session.
+	 */
+	public long sessionId;
+	/**
+	 * The System.nanoTime at which the session entered the phase.
+	 */
+	public long timestamp;
+	/**
+	 * The number of bytes the session had received at the time, after decryption.
+	 */
+	public long bytesReceived;
+	/**
+	 * The number of bytes the session had sent at the time, before encryption.
+	 */
+	public long bytesSent;
+	/**
+	 * The sequence number of the event in the SMTPTracer's ring plus one, written last when the event is published.
+	 */
+	volatile long sequence;
+
+	@Override
+	public String toString()
+	{
+		return "#" + sessionId + " " + phase + " at " + timestamp + " (" + bytesReceived + " bytes received, " + bytesSent + " bytes sent)";
+	}
+}
@@ -0,0 +1,18 @@
+package sh.hell.jsmtp.server;
+
+/**
+ * Receives the phases sessions go through, e.g. to find out whether a slow transaction waited for the network, TLS or the event handler.
+ * Events are buffered without locks and delivered in order on a single thread, so a slow listener never holds up the sessions. If it falls behind and the buffer fills up, events are dropped and counted in {@link SMTPMetrics#getDroppedTraceEvents()}.
+ *
+ * @see SMTPServer#setTraceListener(SMTPTraceListener)
+ */
+@FunctionalInterface
+public interface SMTPTraceListener
+{
+	/**
+	 * Called for every phase of every session.
+	 *
+	 * @param event The event, which is reused after this call returns.
+	 */
+	void onEvent(SMTPTraceEvent event);
+}
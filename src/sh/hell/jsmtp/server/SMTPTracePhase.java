@@ -0,0 +1,56 @@
+package sh.hell.jsmtp.server;
+
+/**
+ * The phases of a session an {@link SMTPTraceListener} is told about.
+ */
+public enum SMTPTracePhase
+{
+	/**
+	 * The connection has been accepted and got a session.
+	 */
+	ACCEPTED,
+	/**
+	 * The greeting has been sent.
+	 */
+	GREETING_SENT,
+	/**
+	 * HELO or EHLO has been received.
+	 */
+	EHLO,
+	/**
+	 * A TLS handshake has started, after STARTTLS or right away with implicit TLS.
+	 */
+	TLS_HANDSHAKE_START,
+	/**
+	 * The TLS handshake has finished successfully.
+	 */
+	TLS_HANDSHAKE_END,
+	/**
+	 * MAIL has been received.
+	 */
+	MAIL,
+	/**
+	 * RCPT has been received, once for every recipient.
+	 */
+	RCPT,
+	/**
+	 * The client has started sending the mail, after DATA or with the first BDAT chunk.
+	 */
+	DATA_START,
+	/**
+	 * The last byte of the mail has been received.
+	 */
+	LAST_BYTE,
+	/**
+	 * The event handler's {@link SMTPEventHandler#onMailComposedAsync} or {@link SMTPEventHandler#onDataEndAsync} has returned its result.
+	 */
+	HANDLER_RETURNED,
+	/**
+	 * The reply to the mail has been sent.
+	 */
+	REPLY_SENT,
+	/**
+	 * The session has ended.
+	 */
+	CLOSED
+}
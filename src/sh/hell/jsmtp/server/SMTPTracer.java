@@ -0,0 +1,120 @@
+package sh.hell.jsmtp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the trace events of all sessions of a server to its SMTPTraceListener on a thread of its own.
+ * Events go through a bounded ring of preallocated events that any number of sessions write to and only this thread reads from. Claiming a slot is a single CAS, so sessions never block, and the events of a session stay in order even when it is processed by different threads.
+ */
+class SMTPTracer extends Thread
+{
+	private static final Logger logger = LoggerFactory.getLogger(SMTPTracer.class);
+	private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+	private final SMTPTraceListener listener;
+	private final LongAdder dropped;
+	private final SMTPTraceEvent[] ring;
+	private final int mask;
+	/**
+	 * The sequence number of the next slot to be claimed.
+	 */
+	private final AtomicLong tail = new AtomicLong(0);
+	/**
+	 * The sequence number of the next event to be delivered, only written by this thread.
+	 */
+	private volatile long head = 0;
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param listener The listener.
+	 * @param capacity The number of events that can be buffered, which is rounded up to a power of two.
+	 * @param dropped  The counter of events that had to be dropped because the ring was full.
+	 */
+	SMTPTracer(SMTPTraceListener listener, int capacity, LongAdder dropped)
+	{
+		super("SMTPTracer");
+		this.listener = listener;
+		this.dropped = dropped;
+		final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.ring = new SMTPTraceEvent[size];
+		for(int i = 0; i < size; i++)
+		{
+			ring[i] = new SMTPTraceEvent();
+		}
+		this.mask = size - 1;
+		this.setDaemon(true);
+		this.start();
+	}
+
+	/**
+	 * Publishes an event. This can be called from any thread and never blocks.
+	 *
+	 * @param session The session.
+	 * @param phase   The phase the session has entered.
+	 */
+	void trace(SMTPSession session, SMTPTracePhase phase)
+	{
+		final long timestamp = System.nanoTime();
+		long sequence;
+		do
+		{
+			sequence = tail.get();
+			if(sequence - head >= ring.length)
+			{
+				dropped.increment();
+				return;
+			}
+		}
+		while(!tail.compareAndSet(sequence, sequence + 1));
+		final SMTPTraceEvent event = ring[(int) sequence & mask];
+		event.phase = phase;
+		event.sessionId = session.id;
+		event.timestamp = timestamp;
+		event.bytesReceived = session.bytesReceived;
+		event.bytesSent = session.bytesSent;
+		event.sequence = sequence + 1;
+	}
+
+	/**
+	 * Stops the thread once all events published so far have been delivered.
+	 */
+	void shutdown()
+	{
+		stopped = true;
+		LockSupport.unpark(this);
+	}
+
+	@Override
+	public void run()
+	{
+		while(true)
+		{
+			final long head = this.head;
+			final SMTPTraceEvent event = ring[(int) head & mask];
+			if(event.sequence != head + 1)
+			{
+				// A claimed slot that hasn't been published yet is about to be, so stopping has to wait for it.
+				if(stopped && tail.get() == head)
+				{
+					return;
+				}
+				LockSupport.parkNanos(this, IDLE_PARK);
+				continue;
+			}
+			try
+			{
+				listener.onEvent(event);
+			}
+			catch(RuntimeException e)
+			{
+				logger.error("Trace listener failed", e);
+			}
+			this.head = head + 1;
+		}
+	}
+}
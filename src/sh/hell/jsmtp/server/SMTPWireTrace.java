@@ -0,0 +1,156 @@
+package sh.hell.jsmtp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * The most recent bytes a session has exchanged with its client, kept in a ring of fixed size.
+ * Every line is prefixed with "&gt; " if it has been received or "&lt; " if it has been sent. Received bytes are recorded as the session processes them, after TLS decryption, and mails are recorded as they were sent, dot-stuffing included.
+ *
+ * @see SMTPSession#startWireTrace(int)
+ * @see SMTPServer#setWireTraceFilter(java.util.function.Predicate)
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class SMTPWireTrace
+{
+	private static final byte[] RECEIVED = new byte[]{'>', ' '};
+	private static final byte[] SENT = new byte[]{'<', ' '};
+	private static final byte[] CRLF = new byte[]{'\r', '\n'};
+	private final byte[] ring;
+	/**
+	 * The number of bytes that have been written to the ring in total.
+	 */
+	private long written = 0;
+	/**
+	 * The prefix of the line currently being recorded, or null if the last byte recorded ended a line.
+	 */
+	private byte[] line = null;
+
+	/**
+	 * @param size The number of bytes to keep.
+	 */
+	SMTPWireTrace(int size)
+	{
+		if(size < 1)
+		{
+			throw new IllegalArgumentException("The size of a wire trace has to be positive.");
+		}
+		this.ring = new byte[size];
+	}
+
+	void received(byte[] data, int offset, int length)
+	{
+		record(RECEIVED, data, offset, length);
+	}
+
+	void sent(byte[] data, int offset, int length)
+	{
+		record(SENT, data, offset, length);
+	}
+
+	private synchronized void record(byte[] prefix, byte[] data, int offset, int length)
+	{
+		if(line != null && line != prefix)
+		{
+			// The other side interrupted a line, e.g. a reply to a command whose CRLF hasn't been recorded yet.
+			put(CRLF, 0, 2);
+			line = null;
+		}
+		final int end = offset + length;
+		while(offset < end)
+		{
+			if(line == null)
+			{
+				put(prefix, 0, 2);
+				line = prefix;
+			}
+			// Copies up to and including the next LF at once.
+			int lineEnd = offset;
+			while(lineEnd < end && data[lineEnd++] != '\n')
+			{
+			}
+			put(data, offset, lineEnd - offset);
+			if(data[lineEnd - 1] == '\n')
+			{
+				line = null;
+			}
+			offset = lineEnd;
+		}
+	}
+
+	/**
+	 * Copies the given bytes into the ring, in at most two pieces if they wrap around its end. If there are more bytes than fit, only the last ones are kept.
+	 */
+	private void put(byte[] data, int offset, int length)
+	{
+		if(length > ring.length)
+		{
+			written += length - ring.length;
+			offset += length - ring.length;
+			length = ring.length;
+		}
+		final int position = (int) (written % ring.length);
+		final int first = Math.min(length, ring.length - position);
+		System.arraycopy(data, offset, ring, position, first);
+		System.arraycopy(data, offset + first, ring, 0, length - first);
+		written += length;
+	}
+
+	/**
+	 * Writes the bytes in the ring to the given stream, oldest first. If older bytes have been overwritten, the dump starts with the first complete line.
+	 *
+	 * @param out The stream.
+	 * @throws IOException When writing fails.
+	 */
+	public void dump(OutputStream out) throws IOException
+	{
+		final byte[] bytes;
+		final boolean overwritten;
+		synchronized(this)
+		{
+			overwritten = (written > ring.length);
+			if(!overwritten)
+			{
+				bytes = new byte[(int) written];
+				System.arraycopy(ring, 0, bytes, 0, bytes.length);
+			}
+			else
+			{
+				final int start = (int) (written % ring.length);
+				bytes = new byte[ring.length];
+				System.arraycopy(ring, start, bytes, 0, ring.length - start);
+				System.arraycopy(ring, 0, bytes, ring.length - start, start);
+			}
+		}
+		int offset = 0;
+		if(overwritten)
+		{
+			while(offset < bytes.length && bytes[offset++] != '\n')
+			{
+			}
+		}
+		out.write(bytes, offset, bytes.length - offset);
+	}
+
+	/**
+	 * Returns the bytes in the ring as a String, see {@link #dump(OutputStream)}.
+	 *
+	 * @return the bytes in the ring as a String.
+	 */
+	@Override
+	public String toString()
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try
+		{
+			dump(out);
+		}
+		catch(IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		return new String(out.toByteArray(), Charset.defaultCharset());
+	}
+}
@@ -1,6 +0,0 @@
-package sh.hell.jsmtp.server;
-
-class UpgradeToTLSException extends Exception
-{
-
-}
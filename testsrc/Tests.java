@@ -6,14 +6,53 @@ import sh.hell.jsmtp.content.SMTPEncoding;
 import sh.hell.jsmtp.content.SMTPMail;
 import sh.hell.jsmtp.content.SMTPMultipartContent;
 import sh.hell.jsmtp.content.SMTPTextContent;
+import sh.hell.jsmtp.exceptions.SMTPException;
+import sh.hell.jsmtp.server.SMTPAsyncEventHandler;
+import sh.hell.jsmtp.server.SMTPDrainResult;
 import sh.hell.jsmtp.server.SMTPEventHandler;
+import sh.hell.jsmtp.server.SMTPListener;
+import sh.hell.jsmtp.server.SMTPMetrics;
 import sh.hell.jsmtp.server.SMTPServer;
 import sh.hell.jsmtp.server.SMTPSession;
+import sh.hell.jsmtp.server.SMTPTLSMode;
+import sh.hell.jsmtp.server.SMTPTLSProfile;
+import sh.hell.jsmtp.server.SMTPTraceEvent;
+import sh.hell.jsmtp.server.SMTPTracePhase;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertNotNull;
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
 
 @SuppressWarnings("ConstantConditions")
 public class Tests
@@ -27,6 +66,20 @@ public class Tests
 		assertEquals("Hêlló, wörld!", SMTPEncoding.BASE64.decode("SMOqbGzDsywgd8O2cmxkIQ=="));
 	}
 
+	@Test(timeout = 1000L)
+	public void testLazyContents()
+	{
+		for(Charset charset : new Charset[]{StandardCharsets.ISO_8859_1, StandardCharsets.UTF_8})
+		{
+			final SMTPMail mail = new SMTPMail();
+			final String contentType = (charset == StandardCharsets.UTF_8 ? "text/plain" : "text/plain; charset=\"" + charset.name() + "\"");
+			mail.headers.put("content-type", contentType);
+			mail.rawMessage = ByteBuffer.wrap(("content-type: " + contentType + "\r\n\r\nHêlló, wörld!\r\n").getBytes(charset)).asReadOnlyBuffer();
+			assertTrue(mail.toString().contains("Hêlló, wörld!"));
+			assertEquals("Hêlló, wörld!\r\n", ((SMTPTextContent) mail.getContents()).body);
+		}
+	}
+
 	@Test(timeout = 5000L)
 	public void testLookups() throws Exception
 	{
@@ -48,63 +101,928 @@ public class Tests
 		SMTPClient.sendMail(new SMTPMail().from(SMTPAddress.fromText("Sender <sender@justsometestdomain.de>")).to(SMTPAddress.fromText("Recipient <jsmtp@existiert.net>")).subject("This is a test.").data(testContent));
 	}
 
+	/**
+	 * The number of mails the test event handler has received memory-mapped from a spool file.
+	 */
+	private static final AtomicInteger spooledMails = new AtomicInteger();
+	private static final SMTPEventHandler testEventHandler = new SMTPEventHandler()
+	{
+		@Override
+		public String getWelcomeMessage(SMTPSession session)
+		{
+			return "Wêlcömé";
+		}
+
+		@Override
+		public String getHostname(SMTPSession session)
+		{
+			return "localhost";
+		}
+
+		public int getSizeLimit(SMTPSession session)
+		{
+			return 1000;
+		}
+
+		@Override
+		public boolean isSenderAccepted(SMTPSession session, SMTPAddress address)
+		{
+			return !address.getInboxName().equals("denied");
+		}
+
+		@Override
+		public boolean isRecipientAccepted(SMTPSession session, SMTPAddress address)
+		{
+			return !address.getInboxName().equals("denied");
+		}
+
+		@Override
+		public boolean onMailComposed(SMTPSession session, SMTPMail mail)
+		{
+			System.out.println("Mail was composed: " + mail.toString());
+			assertNotNull(mail.rawMessage);
+			if(mail.rawMessage instanceof MappedByteBuffer)
+			{
+				// Spooled to disk
+				assertTrue(Charset.defaultCharset().decode(mail.rawMessage.duplicate()).toString().contains("\r\nsubject: Test\r\n"));
+				spooledMails.incrementAndGet();
+			}
+			assertTrue(mail.getContents() instanceof SMTPMultipartContent);
+			assertEquals(2, ((SMTPMultipartContent) mail.getContents()).parts.size());
+			for(SMTPContent body : ((SMTPMultipartContent) mail.getContents()).parts)
+			{
+				assertTrue(body instanceof SMTPTextContent);
+				if(((SMTPTextContent) body).type.equals("text/plain"))
+				{
+					assertEquals("Hêlló, wörld!\r\n\r\n.\r\n", ((SMTPTextContent) body).body);
+				}
+				else
+				{
+					assertEquals("text/html", ((SMTPTextContent) body).type);
+					assertEquals("<b>Hêlló, wörld!</b>\r\n\r\n.\r\n", ((SMTPTextContent) body).body);
+				}
+			}
+			return true;
+		}
+	};
+
+	private static final SMTPEventHandler asyncTestEventHandler = new SMTPAsyncEventHandler()
+	{
+		@Override
+		public String getWelcomeMessage(SMTPSession session)
+		{
+			return testEventHandler.getWelcomeMessage(session);
+		}
+
+		@Override
+		public String getHostname(SMTPSession session)
+		{
+			return testEventHandler.getHostname(session);
+		}
+
+		public int getSizeLimit(SMTPSession session)
+		{
+			return testEventHandler.getSizeLimit(session);
+		}
+
+		@Override
+		public CompletionStage<Boolean> isSenderAcceptedAsync(SMTPSession session, SMTPAddress address)
+		{
+			return CompletableFuture.supplyAsync(()->testEventHandler.isSenderAccepted(session, address));
+		}
+
+		@Override
+		public CompletionStage<Boolean> isRecipientAcceptedAsync(SMTPSession session, SMTPAddress address)
+		{
+			if(address.getInboxName().equals("slow"))
+			{
+				return new CompletableFuture<>();
+			}
+			return CompletableFuture.supplyAsync(()->testEventHandler.isRecipientAccepted(session, address));
+		}
+
+		@Override
+		public CompletionStage<Boolean> onMailComposedAsync(SMTPSession session, SMTPMail mail)
+		{
+			return CompletableFuture.supplyAsync(()->testEventHandler.onMailComposed(session, mail));
+		}
+	};
+
 	@Test(timeout = 5000L)
 	public void testServerAndClient() throws Exception
 	{
-		// Starting server
-		SMTPServer server = new SMTPServer(new SMTPEventHandler()
+		testServerAndClient(new SMTPServer(testEventHandler));
+	}
+
+	@Test(timeout = 5000L)
+	public void testPooledServerAndClient() throws Exception
+	{
+		testServerAndClient(new SMTPServer(testEventHandler).setSessionExecutor(Executors.newFixedThreadPool(1)));
+	}
+
+	@Test(timeout = 5000L)
+	public void testNonBlockingServerAndClient() throws Exception
+	{
+		testServerAndClient(new SMTPServer(testEventHandler).setSelectorThreads(2));
+	}
+
+	@Test(timeout = 5000L)
+	public void testAsyncServerAndClient() throws Exception
+	{
+		testServerAndClient(new SMTPServer(asyncTestEventHandler));
+		testServerAndClient(new SMTPServer(asyncTestEventHandler).setSelectorThreads(1));
+	}
+
+	@Test(timeout = 5000L)
+	public void testPipelining() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			server.setPorts(0).start();
+			final SMTPClient client = new SMTPClient("localhost", server.listeners.get(0).socket.getLocalPort());
+			client.hello("localhost");
+			// The greeting and the reply to EHLO
+			while(server.metrics.getFlushes() < 2)
+			{
+				Thread.sleep(10);
+			}
+			client.write("MAIL FROM:<sender@localhost>");
+			client.write("RCPT TO:<a@localhost>");
+			client.write("RCPT TO:<b@localhost>");
+			client.write("DATA");
+			client.flush();
+			assertEquals("250", client.readResponse().status);
+			assertEquals("250", client.readResponse().status);
+			assertEquals("250", client.readResponse().status);
+			assertEquals("354", client.readResponse().status);
+			client.write(".").flush();
+			client.readResponse();
+			// The pipelined replies have been sent with one flush and the reply to the mail with another.
+			while(server.metrics.getFlushes() < 4)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(4, server.metrics.getFlushes());
+			client.close();
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testHookTimeout() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(asyncTestEventHandler), new SMTPServer(asyncTestEventHandler).setSelectorThreads(1)})
+		{
+			server.setHookTimeout(100, TimeUnit.MILLISECONDS).setPorts(0).start();
+			SMTPClient client = new SMTPClient("localhost", server.listeners.get(0).socket.getLocalPort());
+			client.hello("localhost");
+			client.write("MAIL FROM:<sender@localhost>");
+			client.write("RCPT TO:<slow@localhost>");
+			client.write("RCPT TO:<recipient@localhost>");
+			client.flush();
+			assertEquals("250", client.readResponse().status);
+			assertEquals("451", client.readResponse().status);
+			assertEquals("250", client.readResponse().status);
+			client.close();
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testAdmissionControl() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			server.setMaxSessionsPerClient(1).setPorts(0).start();
+			final int port = server.listeners.get(0).socket.getLocalPort();
+			SMTPClient client = new SMTPClient("localhost", port);
+			try
+			{
+				new SMTPClient("localhost", port);
+				fail();
+			}
+			catch(SMTPException e)
+			{
+				assertEquals("Remote server shut down.", e.getMessage());
+			}
+			client.close();
+			while(server.getSessionCount() > 0)
+			{
+				Thread.sleep(10);
+			}
+			new SMTPClient("localhost", port).close();
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testSessionTimeouts() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
 		{
+			server.setCommandTimeout(200, TimeUnit.MILLISECONDS).setPorts(0).start();
+			SMTPClient client = new SMTPClient("localhost", server.listeners.get(0).socket.getLocalPort());
+			client.hello("localhost");
+			try
+			{
+				client.readResponse();
+				fail();
+			}
+			catch(SMTPException e)
+			{
+				assertEquals("Remote server shut down.", e.getMessage());
+			}
+			while(server.getSessionCount() > 0)
+			{
+				Thread.sleep(10);
+			}
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testShorterTimeoutAfterIdleTick() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			server.setGreetingTimeout(4, TimeUnit.SECONDS).setCommandTimeout(500, TimeUnit.MILLISECONDS).setPorts(0).start();
+			SMTPClient client = new SMTPClient("localhost", server.listeners.get(0).socket.getLocalPort());
+			// Lets the timer come across the session, and put it into the bucket of the greeting timeout, before the deadline is moved earlier.
+			Thread.sleep(300);
+			client.write("NOOP").flush();
+			assertEquals("250", client.readResponse().status);
+			final long start = System.nanoTime();
+			try
+			{
+				client.readResponse();
+				fail();
+			}
+			catch(SMTPException e)
+			{
+				assertEquals("Remote server shut down.", e.getMessage());
+			}
+			assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testGracefulStop() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			server.setPorts(0).start();
+			final int port = server.listeners.get(0).socket.getLocalPort();
+			SMTPClient busyClient = new SMTPClient("localhost", port);
+			busyClient.hello("localhost");
+			busyClient.write("MAIL FROM:<sender@localhost>");
+			busyClient.write("RCPT TO:<recipient@localhost>");
+			busyClient.write("DATA");
+			busyClient.flush();
+			assertEquals("250", busyClient.readResponse().status);
+			assertEquals("250", busyClient.readResponse().status);
+			assertEquals("354", busyClient.readResponse().status);
+			SMTPClient idleClient = new SMTPClient("localhost", port);
+			idleClient.hello("localhost");
+			final CompletableFuture<SMTPDrainResult> drain = CompletableFuture.supplyAsync(()->server.stop(Duration.ofSeconds(3)));
+			try
+			{
+				idleClient.readResponse();
+				fail();
+			}
+			catch(SMTPException e)
+			{
+				assertEquals("Remote server shut down.", e.getMessage());
+			}
+			busyClient.write(new SMTPMail().from(new SMTPAddress("sender@localhost")).to(new SMTPAddress("recipient@localhost")).subject("Test").data(testContent).getRawContents()).write(".").flush();
+			assertEquals("250", busyClient.readResponse().status);
+			try
+			{
+				busyClient.readResponse();
+				fail();
+			}
+			catch(SMTPException e)
+			{
+				assertEquals("Remote server shut down.", e.getMessage());
+			}
+			assertEquals(2, drain.get().drained);
+			assertEquals(0, drain.get().killed);
+			assertTrue(!server.isOnline());
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testAcceptorThreads() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			server.setBindAddress(InetAddress.getLoopbackAddress()).setBacklog(128).setAcceptorThreads(4).setPorts(0).start();
+			assertEquals(4, server.listeners.size());
+			final int port = server.listeners.get(0).socket.getLocalPort();
+			for(SMTPListener listener : server.listeners)
+			{
+				assertEquals(port, listener.socket.getLocalPort());
+			}
+			final SMTPClient[] clients = new SMTPClient[8];
+			for(int i = 0; i < clients.length; i++)
+			{
+				clients[i] = new SMTPClient("localhost", port);
+				clients[i].hello("localhost");
+			}
+			for(SMTPClient client : clients)
+			{
+				client.close();
+			}
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 1000L)
+	public void testTLSProfile()
+	{
+		final String[] supported = new String[]{"TLS_RSA_WITH_AES_128_CBC_SHA", "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256", "SSL_RSA_WITH_RC4_128_MD5", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_AES_128_GCM_SHA256", "TLS_EMPTY_RENEGOTIATION_INFO_SCSV"};
+		SMTPTLSProfile profile = new SMTPTLSProfile(new String[]{"TLSv1", "TLSv1.2", "TLSv1.3"}, supported, false);
+		assertEquals("TLSv1.3,TLSv1.2", String.join(",", profile.protocols));
+		assertEquals("TLS_AES_128_GCM_SHA256,TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256,TLS_EMPTY_RENEGOTIATION_INFO_SCSV", String.join(",", profile.cipherSuites));
+		profile = new SMTPTLSProfile(new String[]{"TLSv1.2"}, supported, true);
+		assertEquals("TLS_AES_128_GCM_SHA256,TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,TLS_EMPTY_RENEGOTIATION_INFO_SCSV", String.join(",", profile.cipherSuites));
+	}
+
+	@Test(timeout = 5000L)
+	public void testImplicitTLS() throws Exception
+	{
+		final SSLContext clientContext = createTrustingContext();
+		for(int selectorThreads = 0; selectorThreads < 2; selectorThreads++)
+		{
+			final SMTPServer server = new SMTPServer(testEventHandler, ".jsmtp_keystore", "123456").setSelectorThreads(selectorThreads).setPorts(SMTPTLSMode.IMPLICIT, 0).start();
+			final SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket("localhost", server.listeners.get(0).socket.getLocalPort());
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charset.defaultCharset()));
+			final Writer out = new OutputStreamWriter(socket.getOutputStream(), Charset.defaultCharset());
+			assertTrue(in.readLine().startsWith("220 "));
+			out.write("EHLO localhost\r\n");
+			out.flush();
+			String line;
+			do
+			{
+				line = in.readLine();
+				assertNotEquals("250-STARTTLS", line);
+			}
+			while(line.startsWith("250-"));
+			out.write("QUIT\r\n");
+			out.flush();
+			assertTrue(in.readLine().startsWith("221 "));
+			socket.close();
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testImplicitTLSRejection() throws Exception
+	{
+		final SSLContext clientContext = createTrustingContext();
+		for(int selectorThreads = 0; selectorThreads < 2; selectorThreads++)
+		{
+			final SMTPServer server = new SMTPServer(testEventHandler, ".jsmtp_keystore", "123456").setSelectorThreads(selectorThreads).setConnectionRateLimit(1, 1, TimeUnit.MINUTES).setPorts(SMTPTLSMode.IMPLICIT, 0).start();
+			final int port = server.listeners.get(0).socket.getLocalPort();
+			final SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket("localhost", port);
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charset.defaultCharset()));
+			assertTrue(in.readLine().startsWith("220 "));
+			// The rejected client is closed without a plaintext reply getting into its handshake.
+			final Socket rejected = new Socket("localhost", port);
+			assertEquals(-1, rejected.getInputStream().read());
+			assertEquals(1, server.metrics.getRejectedConnections());
+			rejected.close();
+			socket.close();
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 10000L)
+	public void testStartTLS() throws Exception
+	{
+		final SSLContext clientContext = createTrustingContext();
+		final String rawContents = new SMTPMail().from(new SMTPAddress("sender@localhost")).to(new SMTPAddress("recipient@localhost")).subject("Test").data(testContent).getRawContents();
+		for(int selectorThreads = 0; selectorThreads < 2; selectorThreads++)
+		{
+			final SMTPServer server = new SMTPServer(testEventHandler, ".jsmtp_keystore", "123456").setSelectorThreads(selectorThreads).setPorts(0).start();
+			final int port = server.listeners.get(0).socket.getLocalPort();
+			final Socket plain = new Socket("localhost", port);
+			BufferedReader in = new BufferedReader(new InputStreamReader(plain.getInputStream(), Charset.defaultCharset()));
+			Writer out = new OutputStreamWriter(plain.getOutputStream(), Charset.defaultCharset());
+			assertEquals("220", readReply(in));
+			out.write("EHLO localhost\r\nSTARTTLS\r\n");
+			out.flush();
+			assertEquals("250", readReply(in));
+			assertEquals("220", readReply(in));
+			final SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket(plain, "localhost", port, true);
+			socket.startHandshake();
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charset.defaultCharset()));
+			out = new OutputStreamWriter(socket.getOutputStream(), Charset.defaultCharset());
+			out.write("EHLO localhost\r\n");
+			out.flush();
+			assertEquals("250", readReply(in));
+			assertTrue(server.getSessions().get(0).isEncrypted());
+			// More pipelined commands than a session reads per readiness event
+			final StringBuilder noops = new StringBuilder();
+			for(int i = 0; i < 12000; i++)
+			{
+				noops.append("NOOP\r\n");
+			}
+			out.write(noops.toString());
+			out.flush();
+			for(int i = 0; i < 12000; i++)
+			{
+				assertEquals("250", readReply(in));
+			}
+			out.write("MAIL FROM:<sender@localhost>\r\nRCPT TO:<recipient@localhost>\r\nDATA\r\n");
+			out.flush();
+			assertEquals("250", readReply(in));
+			assertEquals("250", readReply(in));
+			assertEquals("354", readReply(in));
+			out.write(rawContents + ".\r\nQUIT\r\n");
+			out.flush();
+			assertEquals("250", readReply(in));
+			assertEquals("221", readReply(in));
+			socket.close();
+			assertEquals(1, server.metrics.getTLSHandshakes());
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testProxyProtocol() throws Exception
+	{
+		final byte[] v1 = "PROXY TCP4 192.0.2.1 192.0.2.2 12345 25\r\n".getBytes(StandardCharsets.US_ASCII);
+		final byte[] v2 = new byte[]{'\r', '\n', '\r', '\n', 0, '\r', '\n', 'Q', 'U', 'I', 'T', '\n', 0x21, 0x11, 0, 12, (byte) 192, 0, 2, 1, (byte) 192, 0, 2, 2, 0x30, 0x39, 0, 25};
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			server.setProxyProtocolPorts(0).setPorts(0).start();
+			for(byte[] header : new byte[][]{v1, v2})
+			{
+				final Socket socket = new Socket("localhost", server.listeners.get(0).socket.getLocalPort());
+				final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charset.defaultCharset()));
+				socket.getOutputStream().write(header);
+				assertTrue(in.readLine().startsWith("220 "));
+				assertEquals(new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 12345), server.getSessions().get(0).getClientAddress());
+				socket.getOutputStream().write("QUIT\r\n".getBytes(StandardCharsets.US_ASCII));
+				assertTrue(in.readLine().startsWith("221 "));
+				socket.close();
+				while(server.getSessionCount() > 0)
+				{
+					Thread.sleep(10);
+				}
+			}
+			final String[] malformed = new String[]{
+					"EHLO localhost",
+					"PROXY TCP4 192.0.2.1 192.0.2.2 12345",
+					"PROXY TCP4 192.0.2.1 192.0.2.2 12345 25 ",
+					"PROXY TCP4 192.0.2.1  192.0.2.2 12345 25",
+					"PROXY TCP5 192.0.2.1 192.0.2.2 12345 25",
+					"PROXY TCP4 192.0.2.256 192.0.2.2 12345 25",
+					"PROXY TCP4 192.0.2.1 example.com 12345 25",
+					"PROXY TCP4 192.0.2.1 2001:db8::2 12345 25",
+					"PROXY TCP6 2001:db8::1 192.0.2.2 12345 25",
+					"PROXY TCP6 2001:db8::1 2001:db8::2%1 12345 25",
+					"PROXY TCP4 192.0.2.1 192.0.2.2 +12345 25",
+					"PROXY TCP4 192.0.2.1 192.0.2.2 12345 65536",
+					"PROXY TCP4 192.0.2.1 192.0.2.2 12345 -25"
+			};
+			for(String header : malformed)
+			{
+				final Socket socket = new Socket("localhost", server.listeners.get(0).socket.getLocalPort());
+				socket.getOutputStream().write((header + "\r\n").getBytes(StandardCharsets.US_ASCII));
+				assertEquals(header, -1, socket.getInputStream().read());
+				socket.close();
+			}
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testProxyProtocolAdmission() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			server.setMaxSessions(1).setProxyProtocolPorts(0).setPorts(0).start();
+			final int port = server.listeners.get(0).socket.getLocalPort();
+			// A connection that hasn't sent its header yet holds the only session.
+			final Socket pending = new Socket("localhost", port);
+			while(server.getSessionCount() == 0)
+			{
+				Thread.sleep(10);
+			}
+			final Socket rejected = new Socket("localhost", port);
+			assertTrue(new BufferedReader(new InputStreamReader(rejected.getInputStream(), Charset.defaultCharset())).readLine().startsWith("421 "));
+			rejected.close();
+			pending.close();
+			while(server.getSessionCount() > 0)
+			{
+				Thread.sleep(10);
+			}
+			final Socket socket = new Socket("localhost", port);
+			socket.getOutputStream().write("PROXY TCP4 192.0.2.1 192.0.2.2 12345 25\r\n".getBytes(StandardCharsets.US_ASCII));
+			assertTrue(new BufferedReader(new InputStreamReader(socket.getInputStream(), Charset.defaultCharset())).readLine().startsWith("220 "));
+			socket.close();
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testMetrics() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			testServerAndClient(server);
+			final SMTPMetrics metrics = server.metrics;
+			assertEquals(1, metrics.getAcceptedConnections());
+			assertEquals(0, metrics.getActiveSessions());
+			assertEquals(4, metrics.getAcceptedMessages());
+			assertEquals(2, metrics.getRejectedMessages());
+			assertTrue(metrics.getReceivedBytes() > 5000);
+			assertEquals(1, metrics.getCommandLatencies().get("EHLO").getCount());
+			assertEquals(1, metrics.getCommandLatencies().get("XECHO").getCount());
+			assertEquals(0, metrics.getCommandLatencies().get("VRFY").getCount());
+			assertEquals(4, metrics.getCallbackLatencies().get("onMailComposed").getCount());
+			assertTrue(metrics.getCommandLatencies().get("DATA").get99thPercentile() <= metrics.getCommandLatencies().get("DATA").getMax());
+		}
+		final SMTPServer server = new SMTPServer(testEventHandler).setJMXName("sh.hell.jsmtp.test:type=SMTPServer").setPorts(0).start();
+		final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		final Socket socket = new Socket("localhost", server.listeners.get(0).socket.getLocalPort());
+		new BufferedReader(new InputStreamReader(socket.getInputStream(), Charset.defaultCharset())).readLine();
+		assertEquals(1L, mBeanServer.getAttribute(new ObjectName("sh.hell.jsmtp.test:type=SMTPServer"), "ActiveSessions"));
+		assertEquals(0L, mBeanServer.getAttribute(new ObjectName("sh.hell.jsmtp.test:type=SMTPServer,command=MAIL"), "Count"));
+		socket.close();
+		server.stop(true);
+		assertTrue(mBeanServer.queryNames(new ObjectName("sh.hell.jsmtp.test:*"), null).isEmpty());
+	}
+
+	@Test(timeout = 5000L)
+	public void testTraceListener() throws Exception
+	{
+		for(boolean nonBlocking : new boolean[]{false, true})
+		{
+			final ArrayList<SMTPTraceEvent> events = new ArrayList<>();
+			final SMTPServer server = new SMTPServer(testEventHandler).setTraceListener(event->
+			{
+				final SMTPTraceEvent copy = new SMTPTraceEvent();
+				copy.phase = event.phase;
+				copy.sessionId = event.sessionId;
+				copy.timestamp = event.timestamp;
+				copy.bytesReceived = event.bytesReceived;
+				copy.bytesSent = event.bytesSent;
+				synchronized(events)
+				{
+					events.add(copy);
+					events.notifyAll();
+				}
+			});
+			if(nonBlocking)
+			{
+				server.setSelectorThreads(1);
+			}
+			server.setPorts(0).start();
+			final SMTPClient client = new SMTPClient("localhost", server.listeners.get(0).socket.getLocalPort());
+			client.hello("localhost");
+			client.send(new SMTPMail().from(new SMTPAddress("sender@localhost")).to(new SMTPAddress("recipient@localhost")).subject("Test").data(testContent));
+			client.close();
+			synchronized(events)
+			{
+				while(events.isEmpty() || events.get(events.size() - 1).phase != SMTPTracePhase.CLOSED)
+				{
+					events.wait();
+				}
+			}
+			server.stop(true);
+			final SMTPTracePhase[] expected = new SMTPTracePhase[]{SMTPTracePhase.ACCEPTED, SMTPTracePhase.GREETING_SENT, SMTPTracePhase.EHLO, SMTPTracePhase.MAIL, SMTPTracePhase.RCPT, SMTPTracePhase.DATA_START, SMTPTracePhase.LAST_BYTE, SMTPTracePhase.HANDLER_RETURNED, SMTPTracePhase.REPLY_SENT, SMTPTracePhase.CLOSED};
+			assertEquals(expected.length, events.size());
+			for(int i = 0; i < expected.length; i++)
+			{
+				assertEquals(expected[i], events.get(i).phase);
+				assertEquals(events.get(0).sessionId, events.get(i).sessionId);
+				if(i > 0)
+				{
+					assertTrue(events.get(i).timestamp >= events.get(i - 1).timestamp);
+					assertTrue(events.get(i).bytesReceived >= events.get(i - 1).bytesReceived);
+				}
+			}
+			assertTrue(events.get(expected.length - 1).bytesSent > 0);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testWireTrace() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			server.setWireTraceFilter(session->session.id % 2 == 0).setWireTraceSize(64).setPorts(0).start();
+			for(int i = 0; i < 2; i++)
+			{
+				final SMTPClient client = new SMTPClient("localhost", server.listeners.get(0).socket.getLocalPort());
+				client.hello("localhost");
+				final SMTPSession session = server.getSessions().get(0);
+				if(session.id % 2 != 0)
+				{
+					assertEquals(null, session.getWireTrace());
+					session.startWireTrace(1024);
+				}
+				client.write("NOOP").flush();
+				assertEquals("250", client.readResponse().status);
+				final String trace = session.getWireTrace().toString();
+				if(session.id % 2 != 0)
+				{
+					assertEquals("> NOOP\r\n< 250 OK\r\n", trace);
+				}
+				else
+				{
+					// The reply to EHLO alone is longer than the ring.
+					assertTrue(trace.length() <= 64);
+					assertTrue(trace.startsWith("> ") || trace.startsWith("< "));
+					assertTrue(trace.endsWith("> NOOP\r\n< 250 OK\r\n"));
+				}
+				client.close();
+				while(server.getSessionCount() > 0)
+				{
+					Thread.sleep(10);
+				}
+			}
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testMemoryBudget() throws Exception
+	{
+		final String line = new String(new char[998]).replace('\0', 'x');
+		for(boolean spooled : new boolean[]{false, true})
+		{
+			final SMTPServer server = new SMTPServer(new SMTPEventHandler()
+			{
+				@Override
+				public String getHostname(SMTPSession session)
+				{
+					return "localhost";
+				}
+
+				@Override
+				public boolean onMailComposed(SMTPSession session, SMTPMail mail)
+				{
+					return true;
+				}
+			}).setMemoryBudget(100000).setSpoolThreshold(spooled ? 1000000 : -1).setPorts(0).start();
+			final SMTPClient first = new SMTPClient("localhost", server.listeners.get(0).socket.getLocalPort());
+			final SMTPClient second = new SMTPClient("localhost", server.listeners.get(0).socket.getLocalPort());
+			first.hello("localhost");
+			second.hello("localhost");
+			first.write("MAIL FROM:<sender@localhost>").write("RCPT TO:<recipient@localhost>").write("DATA").write("subject: Test").write("");
+			for(int i = 0; i < 40; i++)
+			{
+				first.write(line);
+			}
+			first.flush();
+			assertEquals("250", first.readResponse().status);
+			assertEquals("250", first.readResponse().status);
+			assertEquals("354", first.readResponse().status);
+			while(server.metrics.getBufferedBytes() == 0)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(65536, server.metrics.getBufferedBytes());
+			second.write("MAIL FROM:<sender@localhost>").flush();
+			assertEquals(spooled ? "250" : "452", second.readResponse().status);
+			for(int i = 0; i < 40; i++)
+			{
+				first.write(line);
+			}
+			first.write(".").flush();
+			assertEquals(spooled ? "250" : "452", first.readResponse().status);
+			assertEquals(0, server.metrics.getBufferedBytes());
+			if(!spooled)
+			{
+				second.write("MAIL FROM:<sender@localhost>").flush();
+				assertEquals("250", second.readResponse().status);
+			}
+			first.close();
+			second.close();
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testRateLimits() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			server.setConnectionRateLimit(2, 1, TimeUnit.MINUTES).setMessageRateLimit(2, 1, TimeUnit.MINUTES).setRecipientRateLimit(3, 1, TimeUnit.MINUTES).setMaxRecipients(2).setPorts(0).start();
+			final int port = server.listeners.get(0).socket.getLocalPort();
+			final SMTPClient client = new SMTPClient("localhost", port);
+			client.hello("localhost");
+			client.write("MAIL FROM:<sender@localhost>").write("RCPT TO:<a@localhost>").write("RCPT TO:<b@localhost>").write("RCPT TO:<c@localhost>").flush();
+			assertEquals("250", client.readResponse().status);
+			assertEquals("250", client.readResponse().status);
+			assertEquals("250", client.readResponse().status);
+			assertEquals("452", client.readResponse().status);
+			client.write("RSET").flush();
+			assertEquals("250", client.readResponse().status);
+			client.hello("localhost");
+			client.write("MAIL FROM:<sender@LOCALHOST>").write("RCPT TO:<d@localhost>").write("RCPT TO:<e@localhost>").write("RSET").flush();
+			assertEquals("250", client.readResponse().status);
+			assertEquals("250", client.readResponse().status);
+			assertEquals("451", client.readResponse().status);
+			assertEquals("250", client.readResponse().status);
+			client.hello("localhost");
+			client.write("MAIL FROM:<sender@localhost>").flush();
+			assertEquals("451", client.readResponse().status);
+			new SMTPClient("localhost", port).close();
+			try
+			{
+				new SMTPClient("localhost", port);
+				fail("The third connection should have been refused.");
+			}
+			catch(SMTPException ignored)
+			{
+			}
+			assertEquals(1, server.metrics.getRejectedConnections());
+			assertEquals(4, server.metrics.getRateLimited());
+			client.close();
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testConnectionRateLimitAfterAdmission() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			server.setConnectionRateLimit(2, 1, TimeUnit.MINUTES).setMaxSessions(1).setPorts(0).start();
+			final int port = server.listeners.get(0).socket.getLocalPort();
+			final SMTPClient client = new SMTPClient("localhost", port);
+			try
+			{
+				new SMTPClient("localhost", port);
+				fail("The second connection should have been refused.");
+			}
+			catch(SMTPException ignored)
+			{
+			}
+			client.close();
+			while(server.getSessionCount() > 0)
+			{
+				Thread.sleep(10);
+			}
+			// The refused connection didn't use up the second token.
+			new SMTPClient("localhost", port).close();
+			assertEquals(1, server.metrics.getRejectedConnections());
+			assertEquals(0, server.metrics.getRateLimited());
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testRateLimitsPerDomain() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			server.setMessageRateLimit(1, 1, TimeUnit.MINUTES).setRecipientRateLimit(2, 1, TimeUnit.MINUTES).setProxyProtocolPorts(0).setPorts(0).start();
+			final int port = server.listeners.get(0).socket.getLocalPort();
+			// The first client uses up its own limits and those of example.com.
+			Socket socket = new Socket("localhost", port);
+			BufferedReader in = connectAs(socket, "192.0.2.1");
+			assertEquals("250", command(socket, in, "MAIL FROM:<sender@example.com>"));
+			assertEquals("250", command(socket, in, "RCPT TO:<a@localhost>"));
+			assertEquals("250", command(socket, in, "RCPT TO:<b@localhost>"));
+			assertEquals("451", command(socket, in, "RCPT TO:<c@localhost>"));
+			assertEquals("250", command(socket, in, "RSET"));
+			assertEquals("250", command(socket, in, "EHLO localhost"));
+			assertEquals("451", command(socket, in, "MAIL FROM:<sender@example.org>"));
+			socket.close();
+			// Another client can't send for example.com either. Neither that nor a mail that's too big costs it a token.
+			socket = new Socket("localhost", port);
+			in = connectAs(socket, "192.0.2.2");
+			assertEquals("451", command(socket, in, "MAIL FROM:<sender@EXAMPLE.com>"));
+			assertEquals("552", command(socket, in, "MAIL FROM:<sender@example.org> SIZE=2000"));
+			assertEquals("250", command(socket, in, "MAIL FROM:<sender@example.org>"));
+			assertEquals("250", command(socket, in, "RCPT TO:<a@localhost>"));
+			assertEquals("250", command(socket, in, "RCPT TO:<b@localhost>"));
+			assertEquals("451", command(socket, in, "RCPT TO:<c@localhost>"));
+			socket.close();
+			assertEquals(4, server.metrics.getRateLimited());
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 10000L)
+	public void testRateLimitKeys() throws Exception
+	{
+		for(SMTPServer server : new SMTPServer[]{new SMTPServer(testEventHandler), new SMTPServer(testEventHandler).setSelectorThreads(1)})
+		{
+			server.setMessageRateLimit(2, 2, TimeUnit.SECONDS).setRateLimitKeys(2).setProxyProtocolPorts(0).setPorts(0).start();
+			final int port = server.listeners.get(0).socket.getLocalPort();
+			final Socket first = new Socket("localhost", port);
+			final BufferedReader firstIn = connectAs(first, "192.0.2.1");
+			assertEquals("250", command(first, firstIn, "MAIL FROM:<sender@a.example>"));
+			assertEquals("250", command(first, firstIn, "RSET"));
+			assertEquals("250", command(first, firstIn, "EHLO localhost"));
+			assertEquals("250", command(first, firstIn, "MAIL FROM:<sender@b.example>"));
+			assertEquals("250", command(first, firstIn, "RSET"));
+			assertEquals("250", command(first, firstIn, "EHLO localhost"));
+			// Both domains are busy, so there's no room for a third one.
+			assertEquals("451", command(first, firstIn, "MAIL FROM:<sender@c.example>"));
+			// The domains don't take the room of clients.
+			final Socket second = new Socket("localhost", port);
+			final BufferedReader secondIn = connectAs(second, "192.0.2.2");
+			assertEquals("250", command(second, secondIn, "MAIL FROM:<sender@a.example>"));
+			second.close();
+			final Socket third = new Socket("localhost", port);
+			final BufferedReader thirdIn = connectAs(third, "192.0.2.3");
+			assertEquals("451", command(third, thirdIn, "MAIL FROM:<sender@a.example>"));
+			third.close();
+			// Once buckets are idle again, they make room.
+			Thread.sleep(1100);
+			assertEquals("250", command(first, firstIn, "MAIL FROM:<sender@c.example>"));
+			first.close();
+			server.stop(true);
+		}
+	}
+
+	@Test(timeout = 5000L)
+	public void testSpooledServerAndClient() throws Exception
+	{
+		spooledMails.set(0);
+		testServerAndClient(new SMTPServer(testEventHandler).setSpoolThreshold(100));
+		assertEquals(4, spooledMails.get());
+	}
+
+	@Test(timeout = 5000L)
+	public void testStreamingServerAndClient() throws Exception
+	{
+		testServerAndClient(new SMTPServer(new SMTPEventHandler()
+		{
+			private final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+
 			@Override
 			public String getWelcomeMessage(SMTPSession session)
 			{
-				return "Wêlcömé";
+				return testEventHandler.getWelcomeMessage(session);
 			}
 
 			@Override
 			public String getHostname(SMTPSession session)
 			{
-				return "localhost";
+				return testEventHandler.getHostname(session);
 			}
 
 			public int getSizeLimit(SMTPSession session)
 			{
-				return 1000;
+				return testEventHandler.getSizeLimit(session);
 			}
 
 			@Override
 			public boolean isSenderAccepted(SMTPSession session, SMTPAddress address)
 			{
-				return !address.getInboxName().equals("denied");
+				return testEventHandler.isSenderAccepted(session, address);
 			}
 
 			@Override
 			public boolean isRecipientAccepted(SMTPSession session, SMTPAddress address)
 			{
-				return !address.getInboxName().equals("denied");
+				return testEventHandler.isRecipientAccepted(session, address);
 			}
 
 			@Override
-			public boolean onMailComposed(SMTPSession session, SMTPMail mail)
+			public boolean onDataStart(SMTPSession session, SMTPMail mail)
 			{
-				System.out.println("Mail was composed: " + mail.toString());
-				assertTrue(mail.contents instanceof SMTPMultipartContent);
-				assertEquals(2, ((SMTPMultipartContent) mail.contents).parts.size());
-				for(SMTPContent body : ((SMTPMultipartContent) mail.contents).parts)
-				{
-					assertTrue(body instanceof SMTPTextContent);
-					if(((SMTPTextContent) body).type.equals("text/plain"))
-					{
-						assertEquals("Hêlló, wörld!\r\n\r\n.\r\n", ((SMTPTextContent) body).body);
-					}
-					else
-					{
-						assertEquals("text/html", ((SMTPTextContent) body).type);
-						assertEquals("<b>Hêlló, wörld!</b>\r\n\r\n.\r\n", ((SMTPTextContent) body).body);
-					}
-				}
+				raw.reset();
 				return true;
 			}
-		}).setPorts(0).start();
+
+			@Override
+			public void onData(SMTPSession session, SMTPMail mail, byte[] data, int offset, int length)
+			{
+				raw.write(data, offset, length);
+			}
+
+			@Override
+			public int onDataEnd(SMTPSession session, SMTPMail mail)
+			{
+				final String contents = new String(raw.toByteArray(), Charset.defaultCharset());
+				assertTrue(contents.contains("subject: Test\r\n"));
+				assertTrue(contents.contains("\r\n\r\n"));
+				assertTrue(contents.endsWith("\r\n"));
+				return 250;
+			}
+
+			@Override
+			public boolean onMailComposed(SMTPSession session, SMTPMail mail)
+			{
+				return false;
+			}
+		}));
+	}
+
+	private static void testServerAndClient(SMTPServer server) throws Exception
+	{
+		// Starting server
+		server.registerCommand("XECHO", (session, argument)->session.write("250 " + argument)).setPorts(0).start();
 		// Connecting to the server
 		SMTPClient client = new SMTPClient("localhost", server.listeners.get(0).socket.getLocalPort());
 		assertNotNull(client);
@@ -114,6 +1032,14 @@ public class Tests
 		client.hello("localhost");
 		assertTrue(client.extendedSMTP);
 		assertEquals("localhost", client.serverHostname);
+		// Custom command
+		client.write("xecho Hêlló").flush();
+		assertEquals("Hêlló", client.readResponse().lines.get(0));
+		// Sending lines that are too long or contain a bare LF
+		client.write("NOOP " + new String(new char[5000]).replace('\0', 'x')).flush();
+		assertEquals("500", client.readResponse().status);
+		client.write("NOOP\nNOOP").flush();
+		assertEquals("500", client.readResponse().status);
 		// Define recipient before sender was set
 		client.write("RCPT TO:<recipient@localhost>").flush();
 		assertNotEquals("250", client.readResponse().status);
@@ -135,10 +1061,111 @@ public class Tests
 		assertEquals("354", client.readResponse().status);
 		client.write(".").flush();
 		assertEquals("554", client.readResponse().status);
+		// Exceeding the size limit while sending email
+		client.write("MAIL FROM:<sender@localhost>");
+		client.write("RCPT TO:<recipient@localhost>");
+		client.write("DATA");
+		client.write("subject: Test\r\n");
+		for(int i = 0; i < 30; i++)
+		{
+			client.write(new String(new char[50]).replace('\0', 'x'));
+		}
+		client.write(".").flush();
+		assertEquals("250", client.readResponse().status);
+		assertEquals("250", client.readResponse().status);
+		assertEquals("354", client.readResponse().status);
+		assertEquals("552", client.readResponse().status);
 		// Send email
 		client.send(new SMTPMail().from(new SMTPAddress("sender@localhost")).to(new SMTPAddress("recipient-1@localhost")).to(new SMTPAddress("recipient-2@localhost")).subject("Test").data(testContent));
+		// Send email in chunks
+		client.write("MAIL FROM:<sender@localhost> BODY=BINARYMIME");
+		client.write("RCPT TO:<recipient@localhost>");
+		client.write("DATA");
+		client.flush();
+		assertEquals("250", client.readResponse().status);
+		assertEquals("250", client.readResponse().status);
+		assertEquals("503", client.readResponse().status);
+		final String rawContents = new SMTPMail().from(new SMTPAddress("sender@localhost")).to(new SMTPAddress("recipient@localhost")).subject("Test").data(testContent).getRawContents().replace("\r\n..", "\r\n.");
+		final String firstChunk = rawContents.substring(0, rawContents.length() / 2);
+		final String lastChunk = rawContents.substring(firstChunk.length());
+		client.writer.write("BDAT " + firstChunk.getBytes(Charset.defaultCharset()).length + "\r\n" + firstChunk);
+		client.writer.write("BDAT " + lastChunk.getBytes(Charset.defaultCharset()).length + " LAST\r\n" + lastChunk);
+		client.flush();
+		assertEquals("250", client.readResponse().status);
+		assertEquals("250", client.readResponse().status);
+		// Relay raw email using BDAT and using DATA
+		final SMTPMail rawMail = new SMTPMail().from(new SMTPAddress("sender@localhost")).to(new SMTPAddress("recipient@localhost"));
+		rawMail.rawMessage = ByteBuffer.wrap(rawContents.getBytes(Charset.defaultCharset())).asReadOnlyBuffer();
+		client.send(rawMail);
+		client.serverCapabilities.remove("CHUNKING");
+		client.send(rawMail);
 		// Stop
 		client.close();
 		server.stop(true);
 	}
+
+	/**
+	 * Greets a server on a PROXY protocol port as if connecting from the given address.
+	 *
+	 * @param socket  The connection.
+	 * @param address The IPv4 address of the client.
+	 * @return A reader of the replies.
+	 */
+	private static BufferedReader connectAs(Socket socket, String address) throws IOException
+	{
+		final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+		socket.getOutputStream().write(("PROXY TCP4 " + address + " 192.0.2.254 12345 25\r\n").getBytes(StandardCharsets.US_ASCII));
+		assertEquals("220", readReply(in));
+		assertEquals("250", command(socket, in, "EHLO localhost"));
+		return in;
+	}
+
+	/**
+	 * Sends a command and reads its reply.
+	 *
+	 * @return the status of the reply.
+	 */
+	private static String command(Socket socket, BufferedReader in, String command) throws IOException
+	{
+		socket.getOutputStream().write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		return readReply(in);
+	}
+
+	private static SSLContext createTrustingContext() throws Exception
+	{
+		final SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[]{new X509TrustManager()
+		{
+			public void checkClientTrusted(X509Certificate[] certs, String authType)
+			{
+			}
+
+			public void checkServerTrusted(X509Certificate[] certs, String authType)
+			{
+			}
+
+			public X509Certificate[] getAcceptedIssuers()
+			{
+				return new X509Certificate[0];
+			}
+		}}, null);
+		return context;
+	}
+
+	/**
+	 * Reads a reply, which may span multiple lines.
+	 *
+	 * @param in The reader.
+	 * @return the status of the reply.
+	 */
+	private static String readReply(BufferedReader in) throws IOException
+	{
+		String line;
+		do
+		{
+			line = in.readLine();
+		}
+		while(line.charAt(3) == '-');
+		return line.substring(0, 3);
+	}
 }